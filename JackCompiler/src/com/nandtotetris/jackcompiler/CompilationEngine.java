@@ -37,6 +37,17 @@ public class CompilationEngine {
         labelCount = 0;
     }
 
+    /**
+     * Writes a map from the lines of the vm file to the
+     * lines of the jack file, see VMWriter.writeSourceMap.
+     * Should be called before compileClass.
+     *
+     * @param mapFile the map file
+     */
+    public void writeSourceMap(File mapFile) {
+        codeWriter.writeSourceMap(mapFile, tokenizer.fileName());
+    }
+
     /**
      * Compiles a complete class
      */
@@ -953,5 +964,6 @@ public class CompilationEngine {
             return;
         }
         tokenizer.advance();
+        codeWriter.setSourceLine(tokenizer.lineNumber());
     }
 }
\ No newline at end of file
@@ -18,36 +18,53 @@ public class JackCompiler {
      * @param input The input File object. Input can
      *              be a jack file or a directory with
      *              one or more jack files.
+     * @param sourceMap true to also write a .vm.map
+     *                  file for each vm file
      */
-    private static void compile(File input) {
+    private static void compile(File input, boolean sourceMap) {
 
         if (input.isDirectory()) {
             File[] inputFiles = input.listFiles();
             for (File file:inputFiles) {
                 if (Utils.isJackFile(file)) {
-                    File outputVMFile = new File(file.getAbsolutePath().replaceAll(".jack",".vm"));
-                    CompilationEngine engine = new CompilationEngine(file,outputVMFile);
-                    engine.compileClass();
+                    compileFile(file, sourceMap);
                 }
             }
         }
         else {
-            File outputVMFile = new File(input.getAbsolutePath().replaceAll(".jack",".vm"));
-            CompilationEngine engine = new CompilationEngine(input,outputVMFile);
-            engine.compileClass();
+            compileFile(input, sourceMap);
         }
     }
 
+    /**
+     * Compiles a jack file to a vm file of the same name.
+     * The source map, if written, maps each line of the
+     * vm file to a line of the jack file.
+     */
+    private static void compileFile(File file, boolean sourceMap) {
+
+        File outputVMFile = new File(file.getAbsolutePath().replaceAll(".jack",".vm"));
+        CompilationEngine engine = new CompilationEngine(file,outputVMFile);
+
+        if (sourceMap) {
+            engine.writeSourceMap(new File(outputVMFile.getAbsolutePath() + ".map"));
+        }
+
+        engine.compileClass();
+    }
+
     public static void main(String[] args) {
 
-        if (args.length != 1) {
-            System.out.println("Error: Expected one argument: <input file/dir name>");
+        boolean sourceMap = args.length == 2 && args[0].equals("--source-map");
+
+        if (args.length != 1 && !sourceMap) {
+            System.out.println("Error: Expected arguments: [--source-map] <input file/dir name>");
             System.exit(1);
         }
 
-        File input = new File(args[0]);
+        File input = new File(args[args.length - 1]);
 
         Utils.validateInput(input);
-        compile(input);
+        compile(input, sourceMap);
     }
 }
@@ -11,6 +11,18 @@ import java.io.PrintWriter;
 public class VMWriter {
 
     private PrintWriter outputWriter;
+
+    // Maps each vm line written to a jack line,
+    // null if no source map is written
+    private PrintWriter mapWriter;
+    private String jackFileName;
+
+    // The jack line the next commands come from
+    private int sourceLine;
+
+    // The number of vm lines written
+    private int vmLine;
+
     public VMWriter(File outputFile) {
         try {
             outputWriter = new PrintWriter(outputFile);
@@ -19,43 +31,81 @@ public class VMWriter {
         }
     }
 
+    /**
+     * Writes a source map along with the vm file. Each line of
+     * the map is a vm line number, the jack file name and the
+     * jack line number the vm command on that line comes from,
+     * separated by tabs.
+     *
+     * @param mapFile      the map file
+     * @param jackFileName the name of the jack file compiled
+     */
+    public void writeSourceMap(File mapFile, String jackFileName) {
+        try {
+            mapWriter = new PrintWriter(mapFile);
+            this.jackFileName = jackFileName;
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets the jack line the commands written next come from
+     */
+    public void setSourceLine(int line) {
+        sourceLine = line;
+    }
+
+    private void writeCommand(String command) {
+        outputWriter.println(command);
+        vmLine = vmLine + 1;
+
+        if (mapWriter != null) {
+            mapWriter.println(vmLine + "\t" + jackFileName + "\t" + sourceLine);
+        }
+    }
+
     public void writePush(Segment segment,int index) {
-        outputWriter.println("push " + segment.getString() + " " + index);
+        writeCommand("push " + segment.getString() + " " + index);
     }
 
     public void writePop(Segment segment,int index) {
-        outputWriter.println("pop " + segment.getString() + " " + index);
+        writeCommand("pop " + segment.getString() + " " + index);
     }
 
     public void writeArithmetic(ArithmeticCommand command) {
-        outputWriter.println(command.getString());
+        writeCommand(command.getString());
     }
 
     public void writeLabel(String label) {
-        outputWriter.println("label " + label);
+        writeCommand("label " + label);
     }
 
     public void writeGoto(String label) {
-        outputWriter.println("goto " + label);
+        writeCommand("goto " + label);
     }
 
     public void writeIf(String label) {
-        outputWriter.println("if-goto " + label);
+        writeCommand("if-goto " + label);
     }
 
     public void writeCall(String functionName, int numArgs) {
-        outputWriter.println("call " + functionName + " " + numArgs);
+        writeCommand("call " + functionName + " " + numArgs);
     }
 
     public void writeFunction(String name,int numLocals) {
-        outputWriter.println("function " + name + " " + numLocals);
+        writeCommand("function " + name + " " + numLocals);
     }
 
     public void writeReturn() {
-        outputWriter.println("return");
+        writeCommand("return");
     }
 
     public void close() {
         outputWriter.close();
+
+        if (mapWriter != null) {
+            mapWriter.close();
+        }
     }
 }
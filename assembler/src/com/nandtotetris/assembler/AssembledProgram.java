@@ -0,0 +1,43 @@
+package com.nandtotetris.assembler;
+
+import java.util.Map;
+
+/**
+ * A program assembled in memory by Assembler.assemble:
+ * its instructions (the ROM image) and its symbols.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class AssembledProgram {
+
+    private short[] instructions;
+
+    private Map<String,Integer> symbols;
+
+    /**
+     * @param instructions the assembled instructions
+     * @param symbols      the symbols of the program
+     */
+    AssembledProgram(short[] instructions, Map<String,Integer> symbols) {
+
+        this.instructions = instructions;
+        this.symbols = symbols;
+    }
+
+    /**
+     * @return the assembled instructions (the ROM image)
+     */
+    public short[] getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Returns the symbols of the program: the predefined
+     * symbols, labels and variables.
+     *
+     * @return an unmodifiable map from symbol to address
+     */
+    public Map<String,Integer> getSymbols() {
+        return symbols;
+    }
+}
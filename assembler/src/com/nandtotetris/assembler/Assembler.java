@@ -1,35 +1,240 @@
 package com.nandtotetris.assembler;
 
 import java.io.*;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates hack assembly code into hack machine code.
+ *
+ * The assemble methods and newProgram assemble in memory and keep
+ * nothing in the instance between calls, so one instance can be shared
+ * by many threads, as long as its settings are not changed meanwhile.
+ * The methods assembling a file use the symbol table of the instance,
+ * so an instance assembles one file at a time.
+ */
 public class Assembler {
 
+    // Room reserved in the symbol table for the variables
+    // added by the second pass
+    private static final int VARIABLE_CAPACITY = 256;
+
+    // The symbol table of the file being assembled
     private SymbolTable symbolTable;
 
+    // Whether the .listing file is written
+    private boolean writeListing;
+
+    // Whether the output is written in binary format (.bin)
+    // instead of text (.hack)
+    private boolean writeBinary;
+
+    // Whether the binary output includes the symbol section
+    private boolean writeSymbols;
+
+    // Whether a source map is composed from the maps
+    // of the vm translator and the jack compiler
+    private boolean writeSourceMap;
+
     public Assembler() {
 
         symbolTable = new SymbolTable();
+        writeListing = true;
+        writeBinary = false;
+        writeSymbols = false;
+        writeSourceMap = false;
+    }
+
+    /**
+     * Sets whether a .listing file is written along with the .hack file.
+     * It is written by default.
+     *
+     * @param writeListing false to skip the listing file
+     */
+    public void setWriteListing(boolean writeListing) {
+        this.writeListing = writeListing;
+    }
+
+    /**
+     * Sets whether the output is written as raw 16 bit words to a .bin
+     * file instead of binary text to a .hack file. See HackReader
+     * for the format.
+     *
+     * @param writeBinary true for the binary format
+     */
+    public void setWriteBinary(boolean writeBinary) {
+        this.writeBinary = writeBinary;
+    }
+
+    /**
+     * Sets whether the binary output includes the symbol table.
+     * Ignored for text output.
+     *
+     * @param writeSymbols true to write the symbol section
+     */
+    public void setWriteSymbols(boolean writeSymbols) {
+        this.writeSymbols = writeSymbols;
+    }
+
+    /**
+     * Sets whether a source map from ROM addresses to vm and jack
+     * lines is written along with the output file, composed from
+     * the command map of the vm translator (the input file name
+     * followed by .map) and the maps of the jack compiler. See
+     * SourceMap for the format.
+     *
+     * @param writeSourceMap true to write the source map
+     */
+    public void setWriteSourceMap(boolean writeSourceMap) {
+        this.writeSourceMap = writeSourceMap;
+    }
+
+    /**
+     * Writes the source map of an assembled file, if so set
+     *
+     * @param inputFileName .asm input file name
+     * @param nInstruction  the number of instructions assembled
+     */
+    private void writeSourceMap(String inputFileName, int nInstruction) throws IOException {
+
+        if(writeSourceMap) {
+            SourceMap.composeFile(inputFileName, getOutputFileName(inputFileName), nInstruction);
+        }
+    }
+
+    /**
+     * Returns the name of the output file for an input file
+     *
+     * @param inputFileName .asm input file name
+     * @return the .hack or .bin output file name
+     */
+    private String getOutputFileName(String inputFileName) {
+        return replaceExtension(inputFileName, writeBinary ? ".bin" : ".hack");
     }
 
     /**
-     * converts an input decimal number (as a string) to binary
+     * Returns the name of the listing file for an input file
      *
-     * @param numberString The decimal number (as a string) to convert
-     * @return 15 bit binary number as a string
+     * @param inputFileName .asm input file name
+     * @return the .listing file name
      */
-    private String decimalToBinary(String numberString) {
+    private static String getListingFileName(String inputFileName) {
+        return replaceExtension(inputFileName, ".listing");
+    }
+
+    /**
+     * Replaces the .asm extension of an input file name. Output
+     * files are only named after .asm files, so that the input
+     * (a pipe such as /dev/stdin, say) is never written over.
+     *
+     * @param inputFileName .asm input file name
+     * @param extension     the extension of the output file
+     * @return the output file name
+     */
+    private static String replaceExtension(String inputFileName, String extension) {
+
+        if(!isAsmFileName(inputFileName)) {
+            throw new IllegalArgumentException("The input file does not have an asm extension: " + inputFileName);
+        }
+
+        return inputFileName.substring(0, inputFileName.length() - ".asm".length()) + extension;
+    }
+
+    /**
+     * Returns whether the output files can be named after an input file
+     *
+     * @param inputFileName the input file name
+     * @return true if the name ends with .asm
+     */
+    static boolean isAsmFileName(String inputFileName) {
+        return inputFileName.endsWith(".asm");
+    }
+
+    /**
+     * Writes what precedes the instructions in the output file.
+     * Nothing in text format.
+     *
+     * @param outputFile   the output file
+     * @param nInstruction the number of instructions that follow
+     */
+    private void writeHeader(BlockWriter outputFile, int nInstruction) throws IOException {
+
+        if(writeBinary) {
+            for(byte b : HackReader.BINARY_MAGIC) {
+                outputFile.write((char) b);
+            }
+            outputFile.writeInt(nInstruction);
+        }
+    }
+
+    /**
+     * Writes an instruction to the output file
+     *
+     * @param outputFile  the output file
+     * @param instruction the 16 bit instruction
+     */
+    private void writeInstruction(BlockWriter outputFile, int instruction) throws IOException {
+
+        if(writeBinary) {
+            outputFile.writeWord(instruction);
+        }
+        else {
+            outputFile.writeBinary(instruction);
+            outputFile.newLine();
+        }
+    }
+
+    /**
+     * Writes what follows the instructions in the output file: the
+     * symbol section if the output is binary and symbols are written.
+     *
+     * @param outputFile  the output file
+     * @param symbolTable the symbol table of the program
+     */
+    private void writeTrailer(BlockWriter outputFile, SymbolTable symbolTable) throws IOException {
+
+        if(writeBinary && writeSymbols) {
+
+            Map<String,Integer> symbols = symbolTable.getEntries();
 
-        // System.out.println("numberString = " + numberString);
-        String result = null;
-        int number = Integer.parseInt(numberString);
-        String binaryNumberString = Integer.toBinaryString(number);
+            outputFile.writeInt(symbols.size());
 
-        // System.out.println("Binary Number String = " + binaryNumberString);
+            for(Map.Entry<String,Integer> symbol : symbols.entrySet()) {
+                outputFile.writeWord(symbol.getValue());
+                outputFile.writeWord(symbol.getKey().length());
+                outputFile.write(symbol.getKey());
+            }
+        }
+    }
+
+    /**
+     * Writes a listing file line for an instruction
+     *
+     * @param listingFile       the listing file
+     * @param instructionNumber the number of the instruction
+     * @param type              'A' or 'C'
+     * @param command           the assembly instruction
+     * @param instruction       the binary instruction
+     */
+    private void writeListingLine(BlockWriter listingFile, int instructionNumber, char type,
+                                  String command, int instruction) throws IOException {
 
-        // pad with 0's to make the length 15
-        result = String.format("%015d", Long.parseLong(binaryNumberString));
+        listingFile.writeDecimal(instructionNumber);
+        listingFile.write('\t');
+        listingFile.write(type);
+        listingFile.write('\t');
 
-        return result;
+        if(type == 'A') {
+            listingFile.writeDecimal(instruction);
+        }
+        else {
+            listingFile.writeHex(instruction);
+        }
+
+        listingFile.write('\t');
+        listingFile.write(command);
+        listingFile.newLine();
     }
 
     /**
@@ -37,18 +242,18 @@ public class Assembler {
      *  Adds <symbol,address> to the symbol table
      *  where address is the number of the instruction following the
      *  L-instruction
+     *
+     *  @return the number of instructions in the input file
      */
-    private void firstPass(String inputFileName) {
+    private int firstPass(String inputFileName) throws IOException {
 
-        Parser parser = null;
+        // opens input file for parsing
+        Parser parser = new Parser(inputFileName);
 
-        try{
-            // opens input file for parsing
-            parser = new Parser(inputFileName);
-
-            // A running integer to store the instruction number
-            Integer nInstruction = 0;
+        // A running integer to store the instruction number
+        int nInstruction = 0;
 
+        try{
             while(parser.hasMoreCommands()) {
 
                 // set currentCommand
@@ -65,18 +270,18 @@ public class Assembler {
                     nInstruction = nInstruction + 1;
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Caught IOException: " +  e.getMessage());
         } finally {
             // close input file
             parser.closeFile();
         }
+
+        return nInstruction;
     }
 
     /**
      * Runs through the input file.
      * For each instruction, writes the corresponding binary code to the
-     * .hack file.
+     * .hack file (or the .bin file in binary format).
      *
      * Also writes a listing file for easy debugging.
      * The format of the listing file is as follows:
@@ -90,23 +295,34 @@ public class Assembler {
      * For L Command:
      * <Assembly Instruction>
      *
+     * The listing file is skipped if writeListing is false.
+     *
+     * @param nInstruction the number of instructions found by the first pass
      */
-    private void secondPass(String inputFileName) {
+    private void secondPass(String inputFileName, int nInstruction) throws IOException {
 
-        PrintWriter outputFile = null;
-        PrintWriter listingFile = null;
+        Parser parser = null;
+        BlockWriter outputFile = null;
+        BlockWriter listingFile = null;
 
-        String outputFileName  = inputFileName.replaceAll(".asm",".hack");
-        String listingFileName = inputFileName.replaceAll(".asm",".listing");
+        String outputFileName  = getOutputFileName(inputFileName);
+        String listingFileName = getListingFileName(inputFileName);
 
         try {
-            outputFile = new PrintWriter(new FileWriter(outputFileName));
-            listingFile = new PrintWriter(new FileWriter(listingFileName));
+            outputFile = new BlockWriter(outputFileName);
+            writeHeader(outputFile, nInstruction);
+
+            if(writeListing) {
+                listingFile = new BlockWriter(listingFileName);
+            }
 
             // opens the input file for parsing
-            Parser parser = new Parser(inputFileName);
+            parser = new Parser(inputFileName);
+
+            int variableAddress = 16;
 
-            Integer variableAddress = 16;
+            // The number of symbols in the symbol table
+            int nSymbol = symbolTable.size();
 
             int instructionNumber = 0;
 
@@ -115,36 +331,36 @@ public class Assembler {
                 // set currentCommand
                 parser.advance();
 
-                String instruction = null;
+                int instruction;
 
                 switch (parser.commandType()) {
 
                     case A_COMMAND:
 
-                        String address = null;
-                        String integerRegex = "\\d+";
+                        int address;
 
-                        if(parser.symbol().matches(integerRegex)) {
-                            address = parser.symbol();
+                        if(parser.isConstant()) {
+                            address = Integer.parseInt(parser.symbol());
                         }
                         else {
-                            String symbol = parser.symbol();
-                            if(symbolTable.contains(symbol)) {
-                                address = symbolTable.getAddress(symbol).toString();
-                            }
-                            else {
-                                symbolTable.addEntry(symbol, variableAddress);
-                                address = variableAddress.toString();
+                            address = symbolTable.getOrAssign(parser.symbol(), variableAddress);
+
+                            // the symbol was not in the table: it is a new variable
+                            if(symbolTable.size() > nSymbol) {
                                 variableAddress = variableAddress + 1;
+                                nSymbol = symbolTable.size();
                             }
                         }
 
-                        instruction    = "0" + decimalToBinary(address);
+                        // the most significant bit of an A-instruction is 0
+                        instruction = address;
 
                         // Write instruction to file
-                        outputFile.println(instruction);
-                        listingFile.println(Integer.toString(instructionNumber) + "\t" + "A" + "\t"
-                                + address + "\t" + parser.getCurrentCommand());
+                        writeInstruction(outputFile, instruction);
+
+                        if(listingFile != null) {
+                            writeListingLine(listingFile, instructionNumber, 'A', parser.getCurrentCommand(), address);
+                        }
 
                         instructionNumber = instructionNumber + 1;
 
@@ -152,12 +368,14 @@ public class Assembler {
 
                     case C_COMMAND:
 
-                        instruction = "111" + Code.comp(parser.comp()) + Code.dest(parser.dest()) + Code.jump(parser.jump());
+                        instruction = parser.code();
 
                         // Write instruction to file
-                        outputFile.println(instruction);
-                        listingFile.println(Integer.toString(instructionNumber) + "\t" + "C" + "\t"
-                                + Integer.toHexString(Integer.parseInt(instruction,2)) + "\t" + parser.getCurrentCommand());
+                        writeInstruction(outputFile, instruction);
+
+                        if(listingFile != null) {
+                            writeListingLine(listingFile, instructionNumber, 'C', parser.getCurrentCommand(), instruction);
+                        }
 
                         instructionNumber = instructionNumber + 1;
 
@@ -165,7 +383,10 @@ public class Assembler {
 
                     case L_COMMAND:
 
-                        listingFile.println(parser.getCurrentCommand());
+                        if(listingFile != null) {
+                            listingFile.write(parser.getCurrentCommand());
+                            listingFile.newLine();
+                        }
                         break;
 
                     default:
@@ -173,48 +394,452 @@ public class Assembler {
                         break;
                 }
             }
-        } catch(IOException e) {
-            System.err.println("Caught IOException: " +  e.getMessage());
+
+            writeTrailer(outputFile, symbolTable);
+
+            // Written here so that a failed write is thrown,
+            // close only reports it
+            outputFile.flush();
+
+            if(listingFile != null) {
+                listingFile.flush();
+            }
         } finally {
-            outputFile.close();
-            listingFile.close();
+            if(parser != null) {
+                parser.closeFile();
+            }
+            if(outputFile != null) {
+                outputFile.close();
+            }
+            if(listingFile != null) {
+                listingFile.close();
+            }
         }
     }
 
+    /**
+     * Runs through the input once, keeping the instructions in an
+     * in-memory buffer. See RomBuilder.
+     *
+     * @param parser      the parser of the input
+     * @param symbolTable the symbol table of the program, holding
+     *                    the predefined symbols
+     * @param commands    list to add the commands to in input order,
+     *                    null if they are not needed
+     * @return the assembled instructions
+     */
+    private int[] singlePass(Parser parser, SymbolTable symbolTable, List<String> commands) {
+
+        RomBuilder romBuilder = new RomBuilder(symbolTable);
+
+        while(parser.hasMoreCommands()) {
+
+            // set currentCommand
+            parser.advance();
+
+            if(commands != null) {
+                commands.add(parser.getCurrentCommand());
+            }
+
+            switch (parser.commandType()) {
+
+                case A_COMMAND:
+
+                    romBuilder.instructionA(parser.symbol());
+                    break;
+
+                case C_COMMAND:
+
+                    romBuilder.addInstruction(parser.code());
+                    break;
+
+                case L_COMMAND:
+
+                    romBuilder.instructionL(parser.symbol());
+                    break;
+
+                default:
+
+                    break;
+            }
+        }
+
+        return romBuilder.finish();
+    }
+
+    /**
+     * Assembles the input file in a single pass and writes
+     * the .hack and .listing files once at the end, in the
+     * same format as the second pass.
+     */
+    private void singlePass(String inputFileName) throws IOException {
+
+        int[] rom;
+
+        // The commands in input order, for writing the listing file
+        List<String> commands = writeListing ? new ArrayList<String>() : null;
+
+        // opens input file for parsing
+        Parser parser = new Parser(inputFileName);
+
+        try {
+            rom = singlePass(parser, symbolTable, commands);
+        } finally {
+            // close input file
+            parser.closeFile();
+        }
+
+        writeOutput(getOutputFileName(inputFileName), getListingFileName(inputFileName), rom, symbolTable, commands);
+
+        writeSourceMap(inputFileName, rom.length);
+    }
+
+    /**
+     * Writes the .hack (or .bin) and .listing files for the
+     * instructions assembled by the single pass mode. The listing
+     * file is skipped if there are no commands to list.
+     *
+     * @param outputFileName  .hack or .bin output file name
+     * @param listingFileName .listing file name
+     * @param rom             the assembled instructions
+     * @param symbolTable     the symbol table of the program
+     * @param commands        the commands in input order, null
+     *                        if no listing file is written
+     */
+    private void writeOutput(String outputFileName, String listingFileName, int[] rom,
+                             SymbolTable symbolTable, List<String> commands) throws IOException {
+
+        BlockWriter outputFile = null;
+        BlockWriter listingFile = null;
+
+        try {
+            outputFile = new BlockWriter(outputFileName);
+            writeRom(outputFile, rom, symbolTable);
+
+            if(commands != null) {
+
+                listingFile = new BlockWriter(listingFileName);
+
+                int instructionNumber = 0;
+
+                for(String command : commands) {
+
+                    switch (command.charAt(0)) {
+
+                        case '@':
+
+                            writeListingLine(listingFile, instructionNumber, 'A', command, rom[instructionNumber]);
+                            instructionNumber = instructionNumber + 1;
+                            break;
+
+                        case '(':
+
+                            listingFile.write(command);
+                            listingFile.newLine();
+                            break;
+
+                        default:
+
+                            writeListingLine(listingFile, instructionNumber, 'C', command, rom[instructionNumber]);
+                            instructionNumber = instructionNumber + 1;
+                            break;
+                    }
+                }
+
+                listingFile.flush();
+            }
+
+            // Written here so that a failed write is thrown,
+            // close only reports it
+            outputFile.flush();
+        } finally {
+            if(outputFile != null) {
+                outputFile.close();
+            }
+            if(listingFile != null) {
+                listingFile.close();
+            }
+        }
+    }
+
+    /**
+     * Writes assembled instructions to the output file, with
+     * what precedes and follows them
+     *
+     * @param outputFile  the output file
+     * @param rom         the assembled instructions
+     * @param symbolTable the symbol table of the program
+     */
+    private void writeRom(BlockWriter outputFile, int[] rom, SymbolTable symbolTable) throws IOException {
+
+        writeHeader(outputFile, rom.length);
+
+        for(int instruction : rom) {
+            writeInstruction(outputFile, instruction);
+        }
+
+        writeTrailer(outputFile, symbolTable);
+    }
+
+    /**
+     * Assembles the commands read by the parser in memory,
+     * with a new symbol table.
+     *
+     * @param parser the parser of the assembly code
+     * @return the assembled program
+     */
+    private AssembledProgram assemble(Parser parser) {
+
+        SymbolTable symbolTable = new SymbolTable();
+
+        // Add predefined symbols to the symbol table
+        symbolTable.addPreDefinedSymbols();
+
+        int[] rom;
+
+        try {
+            rom = singlePass(parser, symbolTable, null);
+        } finally {
+            parser.closeFile();
+        }
+
+        short[] instructions = new short[rom.length];
+
+        for(int i = 0; i < rom.length; i++) {
+            instructions[i] = (short) rom[i];
+        }
+
+        return new AssembledProgram(instructions, symbolTable.getEntries());
+    }
+
+    /**
+     * Assembles the assembly code in a string (or any CharSequence)
+     * without any file I/O.
+     *
+     * @param source the assembly code
+     * @return the instructions (the ROM image) and symbols of the program
+     */
+    public AssembledProgram assemble(CharSequence source) {
+        return assemble(new Parser(new CharSequenceLineSource(source)));
+    }
+
+    /**
+     * Assembles the assembly code read from a Reader
+     * without any file I/O. The reader is closed at the end.
+     *
+     * @param source the reader of the assembly code
+     * @return the instructions (the ROM image) and symbols of the program
+     */
+    public AssembledProgram assemble(Reader source) {
+        return assemble(new Parser(new ReaderLineSource(source)));
+    }
+
+    /**
+     * Assembles the assembly code read from an InputStream
+     * without any file I/O. The stream is closed at the end.
+     *
+     * @param source the stream of assembly code
+     * @return the instructions (the ROM image) and symbols of the program
+     */
+    public AssembledProgram assemble(InputStream source) {
+        return assemble(new Parser(source));
+    }
+
+    /**
+     * Starts a new program, with a new symbol table, whose instructions
+     * are given to the returned sink instead of being parsed from text.
+     * Once all instructions are given, writeProgram assembles them.
+     *
+     * @return the sink to give the instructions of the program to
+     */
+    public RomBuilder newProgram() {
+
+        SymbolTable symbolTable = new SymbolTable();
+
+        // Add predefined symbols to the symbol table
+        symbolTable.addPreDefinedSymbols();
+
+        return new RomBuilder(symbolTable);
+    }
+
+    /**
+     * Assembles a program started with newProgram and writes it to
+     * an output file, in binary format if so set. No listing file
+     * is written since there is no assembly text.
+     *
+     * @param program        the program returned by newProgram
+     * @param outputFileName the .hack or .bin output file name
+     * @throws IOException if the output file can not be written
+     */
+    public void writeProgram(RomBuilder program, String outputFileName) throws IOException {
+        writeOutput(outputFileName, null, program.finish(), program.getSymbolTable(), null);
+    }
+
     /**
      * Assembles the input file and writes output to .hack output file
      *
      * @param inputFileName: .asm input file name
+     * @throws IOException if the input can not be read
+     *                     or the output can not be written
      */
-    private void assemble(String inputFileName) {
+    void assembleFile(String inputFileName) throws IOException {
 
         // Add predefined symbols to the symbol table
         symbolTable.addPreDefinedSymbols();
 
         // First pass of the assembling process
-        firstPass(inputFileName);
+        int nInstruction = firstPass(inputFileName);
+
+        // The table now holds every label; make room for the
+        // variables so that the second pass does not rehash it
+        symbolTable.ensureCapacity(symbolTable.size() + VARIABLE_CAPACITY);
 
         // Second pass of the assembling process
-        secondPass(inputFileName);
+        secondPass(inputFileName, nInstruction);
+
+        writeSourceMap(inputFileName, nInstruction);
+    }
+
+    /**
+     * Assembles the input file reading it only once and
+     * writes output to .hack output file
+     *
+     * @param inputFileName: .asm input file name
+     * @throws IOException if the input can not be read
+     *                     or the output can not be written
+     */
+    void assembleFileSinglePass(String inputFileName) throws IOException {
+
+        // Add predefined symbols to the symbol table
+        symbolTable.addPreDefinedSymbols();
+
+        singlePass(inputFileName);
+    }
+
+    /**
+     * Assembles an input file in a single pass and writes the .hack
+     * (or .bin) output to the standard output. Used for inputs no
+     * output file can be named after, such as /dev/stdin. No listing
+     * file is written.
+     *
+     * @param inputFileName the input file name
+     */
+    void assembleFileToStandardOutput(String inputFileName) throws IOException {
+
+        // Add predefined symbols to the symbol table
+        symbolTable.addPreDefinedSymbols();
+
+        int[] rom;
+
+        Parser parser = new Parser(inputFileName);
+
+        try {
+            rom = singlePass(parser, symbolTable, null);
+        } finally {
+            parser.closeFile();
+        }
+
+        BlockWriter outputFile = new BlockWriter(new FileOutputStream(FileDescriptor.out).getChannel(),
+                BlockWriter.DEFAULT_BLOCK_SIZE);
+
+        try {
+            writeRom(outputFile, rom, symbolTable);
+
+            // Written here so that a failed write is thrown,
+            // close only reports it
+            outputFile.flush();
+        } finally {
+            outputFile.close();
+        }
     }
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) {
+
+        List<String> inputs = new ArrayList<String>();
+        boolean singlePass = false;
+        boolean writeListing = true;
+        boolean writeBinary = false;
+        boolean writeSymbols = false;
+        boolean writeSourceMap = false;
+        boolean badArgument = false;
 
-        String inputFileName = null;
+        for(String arg : args) {
 
-        if(args.length != 1) {
-            System.err.println("Single input argument <inputfile> expected");
+            if(arg.equals("--single-pass")) {
+                singlePass = true;
+            }
+            else if(arg.equals("--no-listing")) {
+                writeListing = false;
+            }
+            else if(arg.equals("--binary")) {
+                writeBinary = true;
+            }
+            else if(arg.equals("--symbols")) {
+                writeSymbols = true;
+            }
+            else if(arg.equals("--source-map")) {
+                writeSourceMap = true;
+            }
+            else if(!arg.startsWith("--")) {
+                inputs.add(arg);
+            }
+            else {
+                badArgument = true;
+                break;
+            }
+        }
+
+        if(inputs.isEmpty() || badArgument) {
+            System.err.println("Usage: Assembler [--single-pass] [--no-listing] [--binary [--symbols]] [--source-map] <inputfile|inputdir>...");
             System.exit(1);
         }
-        else {
-            inputFileName = args[0];
+
+        // Many files or directories are assembled as a batch
+        if(inputs.size() > 1 || new File(inputs.get(0)).isDirectory()) {
+
+            BatchAssembler batch = new BatchAssembler();
+            batch.setSinglePass(singlePass);
+            batch.setWriteListing(writeListing);
+            batch.setWriteBinary(writeBinary);
+            batch.setWriteSymbols(writeSymbols);
+            batch.setWriteSourceMap(writeSourceMap);
+
+            if(batch.assemble(inputs) != 0) {
+                System.exit(1);
+            }
+            return;
         }
 
+        String inputFileName = inputs.get(0);
 
         // Initializes an empty symbol table for the assembling process
         Assembler assembler = new Assembler();
+        assembler.setWriteListing(writeListing);
+        assembler.setWriteBinary(writeBinary);
+        assembler.setWriteSymbols(writeSymbols);
+        assembler.setWriteSourceMap(writeSourceMap);
+
+        // No output file can be named after the input, such as
+        // /dev/stdin, so the output goes to the standard output
+        if(!isAsmFileName(inputFileName) && writeSourceMap) {
+            System.err.println("Error: --source-map needs an input file with an asm extension");
+            System.exit(1);
+        }
 
-        assembler.assemble(inputFileName);
+        try {
+            if(!isAsmFileName(inputFileName)) {
+                assembler.assembleFileToStandardOutput(inputFileName);
+            }
+            // A pipe can only be read once
+            else if(singlePass || !new File(inputFileName).isFile()) {
+                assembler.assembleFileSinglePass(inputFileName);
+            }
+            else {
+                assembler.assembleFile(inputFileName);
+            }
+        } catch (IOException e) {
+            System.err.println("Caught IOException: " +  e.getMessage());
+            System.exit(1);
+        }
     }
 }
-
@@ -0,0 +1,212 @@
+package com.nandtotetris.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Assembles many .asm files in one run, concurrently on a fork-join pool.
+ * Every file is assembled by its own Assembler, so each file has its own
+ * symbol table and nothing is shared between the tasks.
+ *
+ * The time taken by each file is reported once all files are done,
+ * in input order.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class BatchAssembler {
+
+    private ForkJoinPool pool;
+
+    // Options given to the assembler of every file
+    private boolean singlePass;
+    private boolean writeListing;
+    private boolean writeBinary;
+    private boolean writeSymbols;
+    private boolean writeSourceMap;
+
+    /**
+     * Assembles one file of a batch and records
+     * the time taken and the error, if any.
+     */
+    private class FileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private String inputFileName;
+
+        private long nanos;
+
+        private Throwable error;
+
+        FileTask(String inputFileName) {
+            this.inputFileName = inputFileName;
+        }
+
+        @Override
+        protected void compute() {
+
+            long start = System.nanoTime();
+
+            // Initializes an empty symbol table for this file
+            Assembler assembler = new Assembler();
+            assembler.setWriteListing(writeListing);
+            assembler.setWriteBinary(writeBinary);
+            assembler.setWriteSymbols(writeSymbols);
+            assembler.setWriteSourceMap(writeSourceMap);
+
+            try {
+                // A pipe can only be read once
+                if(singlePass || !new File(inputFileName).isFile()) {
+                    assembler.assembleFileSinglePass(inputFileName);
+                }
+                else {
+                    assembler.assembleFile(inputFileName);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Uses a pool with one thread per available processor
+     */
+    public BatchAssembler() {
+        this(new ForkJoinPool());
+    }
+
+    /**
+     * @param pool the pool the files are assembled on
+     */
+    public BatchAssembler(ForkJoinPool pool) {
+
+        this.pool = pool;
+        singlePass = false;
+        writeListing = true;
+        writeBinary = false;
+        writeSymbols = false;
+        writeSourceMap = false;
+    }
+
+    /**
+     * Sets whether each file is read only once, see Assembler
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * Sets whether a .listing file is written for each file
+     */
+    public void setWriteListing(boolean writeListing) {
+        this.writeListing = writeListing;
+    }
+
+    /**
+     * Sets whether the output is written in binary format (.bin)
+     */
+    public void setWriteBinary(boolean writeBinary) {
+        this.writeBinary = writeBinary;
+    }
+
+    /**
+     * Sets whether the binary output includes the symbol section
+     */
+    public void setWriteSymbols(boolean writeSymbols) {
+        this.writeSymbols = writeSymbols;
+    }
+
+    /**
+     * Sets whether a source map is written for each file
+     */
+    public void setWriteSourceMap(boolean writeSourceMap) {
+        this.writeSourceMap = writeSourceMap;
+    }
+
+    /**
+     * Adds a file to the list of files to assemble, or every
+     * .asm file under it if it is a directory
+     */
+    private static void addInputFiles(File input, List<String> inputFileNames) {
+
+        if(input.isDirectory()) {
+
+            File[] files = input.listFiles();
+
+            if(files == null) {
+                return;
+            }
+
+            // Directory listings are in no particular order
+            Arrays.sort(files);
+
+            for(File file : files) {
+                if(file.isDirectory() || file.getName().endsWith(".asm")) {
+                    addInputFiles(file, inputFileNames);
+                }
+            }
+        }
+        else {
+            inputFileNames.add(input.getPath());
+        }
+    }
+
+    /**
+     * Assembles the given files, and the .asm files under the given
+     * directories, and prints the time taken by each of them.
+     *
+     * @param inputs .asm file and directory names
+     * @return the number of files that could not be assembled
+     */
+    public int assemble(List<String> inputs) {
+
+        List<String> inputFileNames = new ArrayList<String>();
+
+        for(String input : inputs) {
+            addInputFiles(new File(input), inputFileNames);
+        }
+
+        final List<FileTask> tasks = new ArrayList<FileTask>();
+
+        for(String inputFileName : inputFileNames) {
+            tasks.add(new FileTask(inputFileName));
+        }
+
+        long start = System.nanoTime();
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        long nanos = System.nanoTime() - start;
+
+        int nFailed = 0;
+
+        for(FileTask task : tasks) {
+
+            if(task.error != null) {
+                System.err.println(task.inputFileName + ": " + task.error);
+                nFailed = nFailed + 1;
+            }
+
+            System.out.printf("%10.3f ms  %s%n", task.nanos / 1e6, task.inputFileName);
+        }
+
+        System.out.printf("%10.3f ms  total, %d files on %d threads%n",
+                nanos / 1e6, tasks.size(), pool.getParallelism());
+
+        return nFailed;
+    }
+}
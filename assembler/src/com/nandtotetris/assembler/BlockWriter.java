@@ -0,0 +1,231 @@
+package com.nandtotetris.assembler;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the output of the assembler (.hack, .bin and .listing files).
+ * Text and binary words are rendered straight into a reused byte buffer
+ * which is written to the output file in large blocks through a
+ * FileChannel. Numbers are rendered without creating strings.
+ *
+ * Only ASCII text is supported.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class BlockWriter {
+
+    // Size of the buffer used when none is given
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7',
+            '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    // Same line separator as PrintWriter.println
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+
+    private FileChannel channel;
+
+    private ByteBuffer buffer;
+
+    // Scratch space for rendering a number, large enough for any int
+    private byte[] digits;
+
+    /**
+     * Opens the output file for writing with the default block size
+     *
+     * @param fileName the name of the output file
+     * @throws IOException if the file can not be opened for writing
+     */
+    public BlockWriter(String fileName) throws IOException {
+        this(fileName, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Opens the output file for writing
+     *
+     * @param fileName  the name of the output file
+     * @param blockSize the number of bytes buffered between writes
+     *                  to the file
+     * @throws IOException if the file can not be opened for writing
+     */
+    public BlockWriter(String fileName, int blockSize) throws IOException {
+        this(new FileOutputStream(fileName).getChannel(), blockSize);
+    }
+
+    /**
+     * Writes to an open channel, such as the one of the standard
+     * output. The channel is closed by close.
+     *
+     * @param channel   the channel to write to
+     * @param blockSize the number of bytes buffered between writes
+     *                  to the channel
+     */
+    public BlockWriter(FileChannel channel, int blockSize) {
+
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(blockSize);
+        digits = new byte[11];
+    }
+
+    /**
+     * Flushes the buffer if it has less than the given number of bytes free
+     */
+    private void reserve(int nBytes) throws IOException {
+
+        if(buffer.remaining() < nBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the output file
+     */
+    public void flush() throws IOException {
+
+        buffer.flip();
+
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * Writes a single ASCII character
+     */
+    public void write(char c) throws IOException {
+
+        reserve(1);
+        buffer.put((byte) c);
+    }
+
+    /**
+     * Writes a string of ASCII characters
+     */
+    public void write(CharSequence text) throws IOException {
+
+        int length = text.length();
+
+        for(int i = 0; i < length; i++) {
+
+            if(!buffer.hasRemaining()) {
+                flush();
+            }
+
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the 16 least significant bits of a word as
+     * a 16 character binary number
+     *
+     * @param word the word to write, usually an instruction
+     */
+    public void writeBinary(int word) throws IOException {
+
+        reserve(16);
+
+        for(int bit = 15; bit >= 0; bit--) {
+            buffer.put((byte) ('0' + ((word >> bit) & 1)));
+        }
+    }
+
+    /**
+     * Writes the 16 least significant bits of a word
+     * as 2 bytes, most significant byte first
+     */
+    public void writeWord(int word) throws IOException {
+
+        reserve(2);
+        buffer.putShort((short) word);
+    }
+
+    /**
+     * Writes an int as 4 bytes, most significant byte first
+     */
+    public void writeInt(int value) throws IOException {
+
+        reserve(4);
+        buffer.putInt(value);
+    }
+
+    /**
+     * Writes a number in decimal
+     */
+    public void writeDecimal(int value) throws IOException {
+
+        long number = value;
+        int nDigits = 0;
+
+        if(number < 0) {
+            write('-');
+            number = -number;
+        }
+
+        do {
+            digits[nDigits] = (byte) ('0' + number % 10);
+            nDigits = nDigits + 1;
+            number = number / 10;
+        } while(number != 0);
+
+        reserve(nDigits);
+
+        while(nDigits > 0) {
+            nDigits = nDigits - 1;
+            buffer.put(digits[nDigits]);
+        }
+    }
+
+    /**
+     * Writes a number in hexadecimal, same as Integer.toHexString
+     */
+    public void writeHex(int value) throws IOException {
+
+        int nDigits = 0;
+
+        do {
+            digits[nDigits] = HEX_DIGITS[value & 0xf];
+            nDigits = nDigits + 1;
+            value = value >>> 4;
+        } while(value != 0);
+
+        reserve(nDigits);
+
+        while(nDigits > 0) {
+            nDigits = nDigits - 1;
+            buffer.put(digits[nDigits]);
+        }
+    }
+
+    /**
+     * Ends the current line
+     */
+    public void newLine() throws IOException {
+
+        reserve(LINE_SEPARATOR.length);
+        buffer.put(LINE_SEPARATOR);
+    }
+
+    /**
+     * Writes the remaining buffered bytes and closes the output file,
+     * which is closed even if the bytes can not be written
+     */
+    public void close() {
+        try {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("BlockWriter.close: Caught IOException: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.nandtotetris.assembler;
+
+/**
+ * Reads input lines from a CharSequence held in memory.
+ *
+ * Like MappedLineSource, a line is not copied: readLine returns
+ * this object, which is a view of the characters of the current line.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+class CharSequenceLineSource implements LineSource, CharSequence {
+
+    private CharSequence source;
+
+    // Index of the first character not yet read
+    private int position;
+
+    // The current line is source[lineStart..lineStart+lineLength)
+    private int lineStart;
+
+    private int lineLength;
+
+    CharSequenceLineSource(CharSequence source) {
+
+        this.source = source;
+        position = 0;
+    }
+
+    public CharSequence readLine() {
+
+        int limit = source.length();
+
+        if(position >= limit)
+            return null;
+
+        int end = position;
+
+        while(end < limit) {
+
+            char c = source.charAt(end);
+
+            if(c == '\n' || c == '\r')
+                break;
+
+            end = end + 1;
+        }
+
+        lineStart = position;
+        lineLength = end - position;
+
+        // skip the line terminator: \n, \r or \r\n
+        position = end;
+
+        if(position < limit) {
+
+            char terminator = source.charAt(position);
+            position = position + 1;
+
+            if(terminator == '\r' && position < limit && source.charAt(position) == '\n') {
+                position = position + 1;
+            }
+        }
+
+        return this;
+    }
+
+    public void close() {
+        source = null;
+    }
+
+    public int length() {
+        return lineLength;
+    }
+
+    public char charAt(int index) {
+        return source.charAt(lineStart + index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return source.subSequence(lineStart + start, lineStart + end);
+    }
+
+    @Override
+    public String toString() {
+        return source.subSequence(lineStart, lineStart + lineLength).toString();
+    }
+}
@@ -1,123 +1,137 @@
 package com.nandtotetris.assembler;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-
 public class Code {
 
-    // Maps the comp mnemonic to its 7 bit binary code
-    private static final Map<String,String> compCodes;
-
-    static {
-
-        Map<String,String> compCodesTemp = new HashMap<String,String>();
-
-        compCodesTemp.put("0"  ,"0101010");
-        compCodesTemp.put("1"  ,"0111111");
-        compCodesTemp.put("-1" ,"0111010");
-        compCodesTemp.put("D"  ,"0001100");
-        compCodesTemp.put("A"  ,"0110000");
-        compCodesTemp.put("M"  ,"1110000");
-        compCodesTemp.put("!D" ,"0001101");
-        compCodesTemp.put("!A" ,"0110001");
-        compCodesTemp.put("!M" ,"1110001");
-        compCodesTemp.put("-D" ,"0001111");
-        compCodesTemp.put("-A" ,"0110011");
-        compCodesTemp.put("-M" ,"1110011");
-        compCodesTemp.put("D+1","0011111");
-        compCodesTemp.put("A+1","0110111");
-        compCodesTemp.put("M+1","1110111");
-        compCodesTemp.put("D-1","0001110");
-        compCodesTemp.put("A-1","0110010");
-        compCodesTemp.put("M-1","1110010");
-        compCodesTemp.put("D+A","0000010");
-        compCodesTemp.put("D+M","1000010");
-        compCodesTemp.put("D-A","0010011");
-        compCodesTemp.put("D-M","1010011");
-        compCodesTemp.put("A-D","0000111");
-        compCodesTemp.put("M-D","1000111");
-        compCodesTemp.put("D&A","0000000");
-        compCodesTemp.put("D&M","1000000");
-        compCodesTemp.put("D|A","0010101");
-        compCodesTemp.put("D|M","1010101");
-
-        compCodes = Collections.unmodifiableMap(compCodesTemp);
-    }
+    // The three most significant bits of every C-instruction
+    public static final int C_INSTRUCTION_PREFIX = 0b111 << 13;
+
+    // The a bit of the comp field, set when the comp mnemonic uses M
+    private static final int A_BIT = 0b1000000;
 
-    // Maps the jump mnemonic to its 3 bit binary code
-    private static final Map<String,String> jumpCodes;
+    /**
+     * returns the destination bits d1 d2 d3 of the binary
+     * code of the C-instruction for the dest mnemonic
+     * mnemonic[start..end), as an int.
+     *
+     * @param mnemonic text containing the dest mnemonic
+     * @param start    index of the first character of the mnemonic
+     * @param end      index following the last character of the mnemonic,
+     *                 equal to start if the instruction has no dest
+     * @return d1 d2 d3 as the 3 least significant bits
+     */
+    public static int destCode(CharSequence mnemonic, int start, int end) {
 
-    static {
+        int destBits = 0;
 
-        Map<String,String> jumpCodesTemp = new HashMap<String,String>();
+        for(int i = start; i < end; i++) {
 
-        jumpCodesTemp.put(null ,"000");
-        jumpCodesTemp.put("JGT","001");
-        jumpCodesTemp.put("JEQ","010");
-        jumpCodesTemp.put("JGE","011");
-        jumpCodesTemp.put("JLT","100");
-        jumpCodesTemp.put("JNE","101");
-        jumpCodesTemp.put("JLE","110");
-        jumpCodesTemp.put("JMP","111");
+            switch (mnemonic.charAt(i)) {
+                case 'A': destBits |= 0b100; break;
+                case 'D': destBits |= 0b010; break;
+                case 'M': destBits |= 0b001; break;
+                default:
+                    throw new IllegalArgumentException("Invalid dest mnemonic: "
+                            + mnemonic.subSequence(start, end));
+            }
+        }
 
-        jumpCodes = Collections.unmodifiableMap(jumpCodesTemp);
+        return destBits;
     }
 
     /**
-     * returns the destination bits d1 d2 d3 of the binary
-     * code of the C-instruction for the given dest mnemonic
+     * returns the comp bits a c1 c2 c3 c4 c5 c6 of the binary
+     * code of the C-instruction for the comp mnemonic
+     * mnemonic[start..end), as an int.
+     *
+     * The mnemonic is looked up as if M was A, which sets the a bit.
+     * Its (at most 3) characters are packed into a single int to
+     * switch on.
      *
-     * @param destMnemonic the dest part of the C-instruction dest=comp;jump
-     * @return 3 bits d1 d2 d3 according to the following table
-     *                         d1 d2 d3 destmnemonic
-     *                         0  0  0  null
-     *                         0  0  1  M
-     *                         0  1  0  D
-     *                         0  1  1  MD
-     *                         1  0  0  A
-     *                         1  0  1  AM
-     *                         1  1  0  AD
-     *                         1  1  1  AMD
+     * @param mnemonic text containing the comp mnemonic
+     * @param start    index of the first character of the mnemonic
+     * @param end      index following the last character of the mnemonic
+     * @return a c1 c2 c3 c4 c5 c6 as the 7 least significant bits
      */
-    public static String dest(String destMnemonic) {
+    public static int compCode(CharSequence mnemonic, int start, int end) {
 
-        if(destMnemonic==null)
-            return "000";
+        int aBit = 0;
+        int key = 0;
 
-        StringBuilder destBits = new StringBuilder("000");
-
-        if(destMnemonic.contains("A")) {
-            destBits.setCharAt(0, '1');
+        if(end - start < 1 || end - start > 3) {
+            throw new IllegalArgumentException("Invalid comp mnemonic: "
+                    + mnemonic.subSequence(start, end));
         }
 
-        if(destMnemonic.contains("D")) {
-            destBits.setCharAt(1, '1');
-        }
+        for(int i = start; i < end; i++) {
+
+            char c = mnemonic.charAt(i);
 
-        if(destMnemonic.contains("M")) {
-            destBits.setCharAt(2, '1');
+            if(c == 'M') {
+                aBit = A_BIT;
+                c = 'A';
+            }
+
+            key = (key << 8) | c;
         }
 
-        return destBits.toString();
+        switch (key) {
+
+            case '0':                       return 0b0101010;
+            case '1':                       return 0b0111111;
+            case '-' << 8 | '1':            return 0b0111010;
+            case 'D':                       return 0b0001100;
+            case 'A':                       return 0b0110000 | aBit;
+            case '!' << 8 | 'D':            return 0b0001101;
+            case '!' << 8 | 'A':            return 0b0110001 | aBit;
+            case '-' << 8 | 'D':            return 0b0001111;
+            case '-' << 8 | 'A':            return 0b0110011 | aBit;
+            case 'D' << 16 | '+' << 8 | '1': return 0b0011111;
+            case 'A' << 16 | '+' << 8 | '1': return 0b0110111 | aBit;
+            case 'D' << 16 | '-' << 8 | '1': return 0b0001110;
+            case 'A' << 16 | '-' << 8 | '1': return 0b0110010 | aBit;
+            case 'D' << 16 | '+' << 8 | 'A': return 0b0000010 | aBit;
+            case 'D' << 16 | '-' << 8 | 'A': return 0b0010011 | aBit;
+            case 'A' << 16 | '-' << 8 | 'D': return 0b0000111 | aBit;
+            case 'D' << 16 | '&' << 8 | 'A': return 0b0000000 | aBit;
+            case 'D' << 16 | '|' << 8 | 'A': return 0b0010101 | aBit;
+
+            default:
+                throw new IllegalArgumentException("Invalid comp mnemonic: "
+                        + mnemonic.subSequence(start, end));
+        }
     }
 
     /**
-     * Returns the binary code of the comp mnemonic.
-     * @return 7 comp bits a c1 c2 c3 c4 c5 c6
-     *                     as per the map compCodes
+     * returns the jump bits j1 j2 j3 of the binary code of the
+     * C-instruction for the jump mnemonic mnemonic[start..end),
+     * as an int.
+     *
+     * @param mnemonic text containing the jump mnemonic
+     * @param start    index of the first character of the mnemonic
+     * @param end      index following the last character of the mnemonic,
+     *                 equal to start if the instruction has no jump
+     * @return j1 j2 j3 as the 3 least significant bits
      */
-    public static String comp(String compMnemonic) {
-        return compCodes.get(compMnemonic);
-    }
+    public static int jumpCode(CharSequence mnemonic, int start, int end) {
+
+        if(start == end)
+            return 0b000;
+
+        if(end - start == 3 && mnemonic.charAt(start) == 'J') {
+
+            switch (mnemonic.charAt(start + 1) << 8 | mnemonic.charAt(start + 2)) {
+                case 'G' << 8 | 'T': return 0b001;
+                case 'E' << 8 | 'Q': return 0b010;
+                case 'G' << 8 | 'E': return 0b011;
+                case 'L' << 8 | 'T': return 0b100;
+                case 'N' << 8 | 'E': return 0b101;
+                case 'L' << 8 | 'E': return 0b110;
+                case 'M' << 8 | 'P': return 0b111;
+                default: break;
+            }
+        }
 
-    /**
-     * Returns the binary code of the jump mnemonic
-     * @param jumpMnemonic
-     * @return 3 jump bits j1 j2 j3
-     *                     as per the map jumpCodes
-     */
-    public static String jump(String jumpMnemonic) {
-        return jumpCodes.get(jumpMnemonic);
+        throw new IllegalArgumentException("Invalid jump mnemonic: "
+                + mnemonic.subSequence(start, end));
     }
 }
@@ -0,0 +1,183 @@
+package com.nandtotetris.assembler;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads the instructions written by the assembler, in either
+ * of its output formats:
+ *
+ * Text (.hack): one 16 character binary number per line.
+ *
+ * Binary (.bin): all numbers are big-endian.
+ *     magic               4 bytes  'H' 'K' 'B' 1
+ *     instruction count   4 bytes
+ *     instructions        2 bytes each
+ *   followed by an optional symbol section:
+ *     symbol count        4 bytes
+ *     for each symbol:
+ *       address           2 bytes
+ *       name length       2 bytes
+ *       name              ASCII characters
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class HackReader {
+
+    // The first bytes of a file in binary format
+    static final byte[] BINARY_MAGIC = {'H', 'K', 'B', 1};
+
+    private short[] instructions;
+
+    private Map<String,Integer> symbols;
+
+    /**
+     * Loads a .hack or binary file. The format is
+     * detected from the contents of the file.
+     *
+     * @param fileName the name of the file to load
+     * @throws IOException if the file can not be read
+     *                     or is not in either format
+     */
+    public HackReader(String fileName) throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if(isBinary(buffer)) {
+                readBinary(buffer);
+                return;
+            }
+        } finally {
+            file.close();
+        }
+
+        readText(fileName);
+    }
+
+    /**
+     * Loads the instructions of a .hack or binary file
+     *
+     * @param fileName the name of the file to load
+     * @return the instructions
+     */
+    public static short[] load(String fileName) throws IOException {
+        return new HackReader(fileName).getInstructions();
+    }
+
+    /**
+     * @return the loaded instructions
+     */
+    public short[] getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Returns the <symbol,address> pairs of the symbol section.
+     * Empty if the file is in text format or has no symbol section.
+     *
+     * @return an unmodifiable map of symbols in file order
+     */
+    public Map<String,Integer> getSymbols() {
+        return symbols;
+    }
+
+    private boolean isBinary(ByteBuffer buffer) {
+
+        if(buffer.remaining() < BINARY_MAGIC.length)
+            return false;
+
+        byte[] magic = new byte[BINARY_MAGIC.length];
+        buffer.get(magic);
+
+        return Arrays.equals(magic, BINARY_MAGIC);
+    }
+
+    /**
+     * Reads the binary format following the magic bytes
+     */
+    private void readBinary(ByteBuffer buffer) throws IOException {
+
+        int nInstruction = buffer.getInt();
+
+        if(nInstruction < 0 || nInstruction > buffer.remaining() / 2) {
+            throw new IOException("HackReader: Invalid instruction count " + nInstruction);
+        }
+
+        instructions = new short[nInstruction];
+        buffer.asShortBuffer().get(instructions);
+        buffer.position(buffer.position() + 2 * nInstruction);
+
+        Map<String,Integer> symbolSection = new LinkedHashMap<String,Integer>();
+
+        if(buffer.hasRemaining()) {
+
+            int nSymbol = buffer.getInt();
+
+            for(int i = 0; i < nSymbol; i++) {
+
+                int address = buffer.getShort() & 0xffff;
+                char[] name = new char[buffer.getShort() & 0xffff];
+
+                for(int j = 0; j < name.length; j++) {
+                    name[j] = (char) (buffer.get() & 0xff);
+                }
+
+                symbolSection.put(new String(name), address);
+            }
+        }
+
+        symbols = Collections.unmodifiableMap(symbolSection);
+    }
+
+    /**
+     * Reads the text format
+     */
+    private void readText(String fileName) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+
+        short[] text = new short[1024];
+        int nInstruction = 0;
+
+        try {
+            String line;
+
+            while((line = reader.readLine()) != null) {
+
+                line = line.trim();
+
+                if(line.isEmpty())
+                    continue;
+
+                if(nInstruction == text.length) {
+                    text = Arrays.copyOf(text, 2 * text.length);
+                }
+
+                try {
+                    text[nInstruction] = (short) Integer.parseInt(line, 2);
+                } catch (NumberFormatException e) {
+                    throw new IOException("HackReader: Invalid instruction " + line);
+                }
+
+                nInstruction = nInstruction + 1;
+            }
+        } finally {
+            reader.close();
+        }
+
+        instructions = Arrays.copyOf(text, nInstruction);
+        symbols = Collections.emptyMap();
+    }
+}
@@ -0,0 +1,42 @@
+package com.nandtotetris.assembler;
+
+/**
+ * Receives hack assembly code one instruction at a time, with the
+ * fields of each instruction already separated. Lets a code generator
+ * hand its output to the assembler without writing and parsing
+ * assembly text.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public interface InstructionSink {
+
+    /**
+     * Receives a comment. Sinks that do not keep text may ignore it.
+     *
+     * @param text the text of the comment
+     */
+    void comment(String text);
+
+    /**
+     * Receives an A-instruction @argument
+     *
+     * @param argument a symbol or a decimal constant
+     */
+    void instructionA(String argument);
+
+    /**
+     * Receives a C-instruction dest=comp;jump
+     *
+     * @param dest the dest field, empty if absent
+     * @param comp the comp field
+     * @param jump the jump field, empty if absent
+     */
+    void instructionC(String dest, String comp, String jump);
+
+    /**
+     * Receives a label declaration (label)
+     *
+     * @param label the declared label
+     */
+    void instructionL(String label);
+}
@@ -0,0 +1,25 @@
+package com.nandtotetris.assembler;
+
+import java.io.IOException;
+
+/**
+ * A source of input lines for the Parser.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+interface LineSource {
+
+    /**
+     * Reads the next line of the input. The returned line is only
+     * valid until the next call to readLine.
+     *
+     * @return the next line without the line terminator,
+     *         null at the end of the input
+     */
+    CharSequence readLine() throws IOException;
+
+    /**
+     * Closes the input
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,110 @@
+package com.nandtotetris.assembler;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads input lines from a regular file mapped into memory.
+ *
+ * A line is not copied out of the mapping: readLine returns this
+ * object, which is a view of the bytes of the current line. The
+ * input is expected to be ASCII.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+class MappedLineSource implements LineSource, CharSequence {
+
+    private RandomAccessFile file;
+
+    private MappedByteBuffer buffer;
+
+    // Index of the first byte not yet read
+    private int position;
+
+    // The current line is buffer[lineStart..lineStart+lineLength)
+    private int lineStart;
+
+    private int lineLength;
+
+    /**
+     * Maps a regular file for reading. The file must be
+     * smaller than 2GB.
+     *
+     * @param fileName the name of the file to map
+     */
+    MappedLineSource(String fileName) throws IOException {
+
+        file = new RandomAccessFile(fileName, "r");
+        FileChannel channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        position = 0;
+    }
+
+    public CharSequence readLine() {
+
+        int limit = buffer.limit();
+
+        if(position >= limit)
+            return null;
+
+        int end = position;
+
+        while(end < limit) {
+
+            byte b = buffer.get(end);
+
+            if(b == '\n' || b == '\r')
+                break;
+
+            end = end + 1;
+        }
+
+        lineStart = position;
+        lineLength = end - position;
+
+        // skip the line terminator: \n, \r or \r\n
+        position = end;
+
+        if(position < limit) {
+
+            byte terminator = buffer.get(position);
+            position = position + 1;
+
+            if(terminator == '\r' && position < limit && buffer.get(position) == '\n') {
+                position = position + 1;
+            }
+        }
+
+        return this;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public int length() {
+        return lineLength;
+    }
+
+    public char charAt(int index) {
+        return (char) (buffer.get(lineStart + index) & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+
+        char[] line = new char[lineLength];
+
+        for(int i = 0; i < lineLength; i++) {
+            line[i] = charAt(i);
+        }
+
+        return new String(line);
+    }
+}
@@ -1,8 +1,10 @@
 package com.nandtotetris.assembler;
 
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 
 /**
  * This class encapsulates access to input code. It
@@ -13,13 +15,57 @@ import java.io.RandomAccessFile;
  */
 public class Parser {
 
-    private RandomAccessFile inputFile = null;
+    // Initial size of the command buffer. The buffer grows as needed.
+    private static final int INITIAL_COMMAND_SIZE = 64;
 
+    private LineSource inputFile = null;
+
+    // The next input line containing a command, read ahead
+    // by hasMoreCommands and consumed by advance
+    private CharSequence nextLine;
+
+    // The current command with comments and white spaces removed
+    private StringBuilder command;
+
+    // Index of '=' in the current command, -1 if absent
+    private int equalsIndex;
+
+    // Index of ';' in the current command, -1 if absent
+    private int semicolonIndex;
+
+    // The current command as a string, created on demand
     private String currentCommand;
 
-    Parser(String filename) throws FileNotFoundException {
+    /**
+     * Opens an input file for parsing. A regular file is mapped into
+     * memory, anything else (a pipe, a device) is read through a
+     * buffered stream.
+     *
+     * @param filename the name of the .asm input file
+     */
+    Parser(String filename) throws IOException {
+
+        this(new File(filename).isFile() && new File(filename).length() <= Integer.MAX_VALUE
+                ? new MappedLineSource(filename)
+                : new ReaderLineSource(new InputStreamReader(new FileInputStream(filename))));
+    }
+
+    /**
+     * Parses the commands read from an input stream,
+     * such as the standard input.
+     *
+     * @param inputStream the stream of assembly code
+     */
+    Parser(InputStream inputStream) {
+
+        this(new ReaderLineSource(new InputStreamReader(inputStream)));
+    }
+
+    Parser(LineSource lineSource) {
 
-        inputFile = new RandomAccessFile(filename,"r");
+        inputFile = lineSource;
+        nextLine = null;
+        command = new StringBuilder(INITIAL_COMMAND_SIZE);
         currentCommand = null;
     }
 
@@ -30,6 +76,11 @@ public class Parser {
      * @return the current command string
      */
     String getCurrentCommand() {
+
+        if(currentCommand == null) {
+            currentCommand = command.toString();
+        }
+
         return currentCommand;
     }
 
@@ -39,17 +90,22 @@ public class Parser {
      * @param line input line of assembly language input file
      * @return     true if line contains a command
      */
-    private Boolean hasACommand(String line) {
+    private boolean hasACommand(CharSequence line) {
+
+        int length = line.length();
+
+        for(int i = 0; i < length; i++) {
 
-        // An input line that matches this regular expression
-        // does not contain a command
-        String whitespaceOrComment = "(\\s*)|\\s*//.*";
+            char c = line.charAt(i);
 
-    	/*if(line.matches(whitespaceOrComment)) {
-    		System.out.println("hasACommand: " + line + " does not contain a command");
-    	}*/
+            if(!Character.isWhitespace(c)) {
 
-        return !line.matches(whitespaceOrComment);
+                // The rest of the line may be a comment
+                return !(c == '/' && i + 1 < length && line.charAt(i + 1) == '/');
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -61,60 +117,71 @@ public class Parser {
      */
     public Boolean hasMoreCommands() {
 
-        String line = null;
-        long currentPosition;
+        if(nextLine != null)
+            return true;
 
-        do {
-            try {
+        try {
 
-                currentPosition = inputFile.getFilePointer();
-                line = inputFile.readLine();
+            CharSequence line;
 
-                if(line == null)
-                    return false;
+            while((line = inputFile.readLine()) != null) {
 
                 if(hasACommand(line)) {
 
-                    // set the file pointer so that advance method can access the command
-                    inputFile.seek(currentPosition);
+                    // keep the line so that advance method can access the command
+                    nextLine = line;
 
                     return true;
                 }
-
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
             }
 
-        } while (true);
+        } catch (IOException e) {
+            System.err.println("Parser.hasMoreCommands: Caught IOException" + e.getMessage());
+        }
+
+        return false;
     }
 
     /**
      * Reads the next command from the input and makes it the current
      * command. Should be called only if hasMoreCommands() is true.
      * Initially there is no current command.
+     *
+     * Copies the line into the command buffer, dropping white spaces
+     * and the comment, and notes the positions of '=' and ';'.
      */
     public void advance() {
-        try {
-            String line = inputFile.readLine();
+
+        CharSequence line = nextLine;
+        int length = line.length();
+
+        nextLine = null;
+        currentCommand = null;
+        command.setLength(0);
+        equalsIndex = -1;
+        semicolonIndex = -1;
+
+        for(int i = 0; i < length; i++) {
+
+            char c = line.charAt(i);
 
             // remove comments
-            String commentPattern = "//.*";
-            line = line.replaceAll(commentPattern,"");
+            if(c == '/' && i + 1 < length && line.charAt(i + 1) == '/')
+                break;
 
             // remove white spaces
-            String whitespaces = "\\s";
-            line = line.replaceAll(whitespaces,"");
+            if(Character.isWhitespace(c))
+                continue;
 
-            currentCommand = line;
-
-            // System.out.println("advance: Current command = " + currentCommand);
+            if(c == '=' && equalsIndex < 0) {
+                equalsIndex = command.length();
+            }
+            else if(c == ';') {
+                semicolonIndex = command.length();
+            }
 
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            command.append(c);
         }
-
     }
 
     /**
@@ -128,10 +195,10 @@ public class Parser {
      */
     public CommandType commandType() {
 
-        if(currentCommand.charAt(0)=='@')
+        if(command.charAt(0)=='@')
             return CommandType.A_COMMAND;
 
-        if(currentCommand.charAt(0)=='(')
+        if(command.charAt(0)=='(')
             return CommandType.L_COMMAND;
 
         return CommandType.C_COMMAND;
@@ -149,15 +216,39 @@ public class Parser {
         assert(commandType()==CommandType.A_COMMAND
                 || commandType()==CommandType.L_COMMAND);
 
-        if(commandType()==CommandType.A_COMMAND) {
-            return currentCommand.replaceAll("[@]","");
+        if(command.charAt(0)=='@') {
+            return command.substring(1);
         }
 
-        if(commandType()==CommandType.L_COMMAND) {
-            return currentCommand.replaceAll("[(|)]","");
+        // skip the closing parenthesis if present
+        int end = command.length();
+        if(command.charAt(end - 1)==')') {
+            end = end - 1;
+        }
+
+        return command.substring(1, end);
+    }
+
+    /**
+     * Returns true if the current A-command is @decimal
+     * rather than @symbol.
+     * Should be called only when commandType() is A_COMMAND.
+     *
+     * @return true if the current command is @decimal
+     */
+    public boolean isConstant() {
+
+        assert(commandType()==CommandType.A_COMMAND);
+
+        if(command.length() < 2)
+            return false;
+
+        for(int i = 1; i < command.length(); i++) {
+            if(command.charAt(i) < '0' || command.charAt(i) > '9')
+                return false;
         }
 
-        return null;
+        return true;
     }
 
     /**
@@ -172,13 +263,10 @@ public class Parser {
 
         assert(commandType()==CommandType.C_COMMAND);
 
-        String dest = null;
-
-        if(currentCommand.contains("=")) {
-            dest = currentCommand.replaceAll("=.*", "");
-        }
+        if(equalsIndex < 0)
+            return null;
 
-        return dest;
+        return command.substring(0, equalsIndex);
     }
 
     /**
@@ -192,22 +280,11 @@ public class Parser {
 
         assert(commandType()==CommandType.C_COMMAND);
 
-        // currentCommand surely contains the comp field
-        // We start with currentCommand and remove the
-        // other fields
-        String comp = currentCommand;
-
-        // remove the [dest=] part if present
-        if(comp.contains("=")) {
-            comp = comp.replaceAll(".*=","");
-        }
+        // comp lies between the [dest=] and the [;jmp] parts
+        int start = equalsIndex + 1;
+        int end   = semicolonIndex < 0 ? command.length() : semicolonIndex;
 
-        // remove the [;jmp] part if present
-        if(comp.contains(";")) {
-            comp = comp.replaceAll(";.*","");
-        }
-
-        return comp;
+        return command.substring(start, end);
     }
 
     /**
@@ -222,13 +299,30 @@ public class Parser {
 
         assert(commandType()==CommandType.C_COMMAND);
 
-        String jump = null;
+        if(semicolonIndex < 0)
+            return null;
 
-        if(currentCommand.contains(";")) {
-            jump = currentCommand.replaceAll(".*;", "");
-        }
+        return command.substring(semicolonIndex + 1);
+    }
+
+    /**
+     * Returns the 16 bit binary code 1 1 1 a c1..c6 d1 d2 d3 j1 j2 j3
+     * of the current C-command, without creating strings for its fields.
+     * Should be called only when commandType() is C_COMMAND.
+     *
+     * @return the binary code of dest=comp;jump
+     */
+    public int code() {
+
+        assert(commandType()==CommandType.C_COMMAND);
+
+        int compEnd = semicolonIndex < 0 ? command.length() : semicolonIndex;
+        int jumpStart = semicolonIndex < 0 ? command.length() : semicolonIndex + 1;
 
-        return jump;
+        return Code.C_INSTRUCTION_PREFIX
+                | Code.compCode(command, equalsIndex + 1, compEnd) << 6
+                | Code.destCode(command, 0, Math.max(equalsIndex, 0)) << 3
+                | Code.jumpCode(command, jumpStart, command.length());
     }
 
     /**
@@ -0,0 +1,28 @@
+package com.nandtotetris.assembler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads input lines through a BufferedReader. Works for any input,
+ * including pipes and the standard input.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+class ReaderLineSource implements LineSource {
+
+    private BufferedReader reader;
+
+    ReaderLineSource(Reader reader) {
+        this.reader = new BufferedReader(reader);
+    }
+
+    public CharSequence readLine() throws IOException {
+        return reader.readLine();
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,175 @@
+package com.nandtotetris.assembler;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Assembles instructions in a single pass, as they are received,
+ * into an in-memory buffer.
+ *
+ * Uses of symbols not yet in the symbol table are recorded in a fixup
+ * table and patched when the label is declared. Symbols still unresolved
+ * at the end are variables and are allocated from address 16 in the
+ * order they were first used, exactly as the second pass of the
+ * assembler does.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class RomBuilder implements InstructionSink {
+
+    // Initial size of the instruction buffer. The buffer grows as needed.
+    private static final int INITIAL_ROM_SIZE = 1024;
+
+    // Marks the end of a chain of unresolved uses of a symbol
+    private static final int END_OF_CHAIN = -1;
+
+    private SymbolTable symbolTable;
+
+    private int[] rom;
+
+    private int nInstruction;
+
+    // Maps each unresolved symbol to the instruction number of its
+    // latest use. Insertion order is the order of first use.
+    private Map<String,Integer> fixups;
+
+    /**
+     * Starts an empty program
+     *
+     * @param symbolTable the symbol table of the program, holding
+     *                    the predefined symbols
+     */
+    public RomBuilder(SymbolTable symbolTable) {
+
+        this.symbolTable = symbolTable;
+        rom = new int[INITIAL_ROM_SIZE];
+        nInstruction = 0;
+        fixups = new LinkedHashMap<String,Integer>();
+    }
+
+    /**
+     * Returns the symbol table of the program
+     */
+    SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * Returns the number of instructions received so far
+     */
+    public int size() {
+        return nInstruction;
+    }
+
+    /**
+     * Appends an encoded instruction to the buffer
+     *
+     * @param instruction the 16 bit instruction
+     */
+    void addInstruction(int instruction) {
+
+        if(nInstruction == rom.length) {
+            rom = Arrays.copyOf(rom, 2 * rom.length);
+        }
+
+        rom[nInstruction] = instruction;
+        nInstruction = nInstruction + 1;
+    }
+
+    /**
+     * Writes every use of a symbol in the chain starting at
+     * instruction number lastUse with the given address.
+     *
+     * Each unresolved A-instruction in the instruction buffer holds
+     * the instruction number of the previous use of the same symbol,
+     * END_OF_CHAIN for the first use.
+     *
+     * @param lastUse instruction number of the latest use of the symbol
+     * @param address the address the symbol resolves to
+     */
+    private void backpatch(int lastUse, int address) {
+
+        int use = lastUse;
+
+        while(use != END_OF_CHAIN) {
+            int previousUse = rom[use];
+            rom[use] = address;
+            use = previousUse;
+        }
+    }
+
+    /**
+     * Returns true if the argument of an A-instruction is a decimal constant
+     */
+    private static boolean isConstant(String argument) {
+
+        if(argument.isEmpty())
+            return false;
+
+        for(int i = 0; i < argument.length(); i++) {
+            if(argument.charAt(i) < '0' || argument.charAt(i) > '9')
+                return false;
+        }
+
+        return true;
+    }
+
+    public void comment(String text) {
+    }
+
+    public void instructionA(String argument) {
+
+        int address = isConstant(argument) ? Integer.parseInt(argument) : symbolTable.getAddress(argument);
+
+        if(address != SymbolTable.NOT_FOUND) {
+            addInstruction(address);
+        }
+        else {
+            // chain this use to the previous use of the symbol
+            Integer previousUse = fixups.get(argument);
+            fixups.put(argument, nInstruction);
+            addInstruction(previousUse == null ? END_OF_CHAIN : previousUse);
+        }
+    }
+
+    public void instructionC(String dest, String comp, String jump) {
+
+        addInstruction(Code.C_INSTRUCTION_PREFIX
+                | Code.compCode(comp, 0, comp.length()) << 6
+                | Code.destCode(dest, 0, dest.length()) << 3
+                | Code.jumpCode(jump, 0, jump.length()));
+    }
+
+    public void instructionL(String label) {
+
+        symbolTable.addEntry(label, nInstruction);
+
+        Integer lastUse = fixups.remove(label);
+        if(lastUse != null) {
+            backpatch(lastUse, nInstruction);
+        }
+    }
+
+    /**
+     * Allocates the variables and returns the assembled program.
+     * No more instructions should be received afterwards.
+     *
+     * @return the assembled instructions
+     */
+    public int[] finish() {
+
+        // The remaining symbols are variables
+        int variableAddress = 16;
+
+        for(Map.Entry<String,Integer> fixup : fixups.entrySet()) {
+            symbolTable.addEntry(fixup.getKey(), variableAddress);
+            backpatch(fixup.getValue(), variableAddress);
+            variableAddress = variableAddress + 1;
+        }
+
+        fixups.clear();
+
+        return Arrays.copyOf(rom, nInstruction);
+    }
+}
@@ -0,0 +1,184 @@
+package com.nandtotetris.assembler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Composes the maps written by the vm translator and the jack compiler
+ * into one map from ROM addresses back to the source code, so that the
+ * samples of a profiler can be put down to vm and jack lines without
+ * the .asm file. All maps are text, one entry per line, with the fields
+ * separated by tabs.
+ *
+ * The vm translator writes a command map along with the .asm file
+ * (Prog.asm.map). Each line is the address where the code of a vm
+ * command starts, the vm file, the line of the command in that file and
+ * the function the code is in. The code of a command ends where the
+ * next begins. The last line holds only the size of the ROM.
+ *
+ * The jack compiler writes a map along with each vm file (Main.vm.map).
+ * Each line is a vm line, the jack file and the jack line the vm
+ * command on that line comes from.
+ *
+ * Each line of the composed map is the start and the end (exclusive)
+ * of a range of addresses, the function, the vm file, the vm line,
+ * the jack file and the jack line. The jack file and line are "-" for
+ * vm files with no map, such as hand written ones.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class SourceMap {
+
+    // Written for the jack file and line when they are not known
+    private static final String UNKNOWN = "-\t-";
+
+    // Where the maps of the vm files are
+    private File directory;
+
+    // The jack file and line of each vm line, by vm file name.
+    // Entry i is for line i + 1.
+    private Map<String, List<String>> vmMaps;
+
+    /**
+     * @param directory the directory of the vm files,
+     *                  where their maps are looked for
+     */
+    public SourceMap(File directory) {
+
+        this.directory = directory;
+        vmMaps = new HashMap<String, List<String>>();
+    }
+
+    /**
+     * Returns the jack file and line, separated by a tab,
+     * of a line of a vm file
+     */
+    private String jackLine(String vmFileName, int vmLine) throws IOException {
+
+        List<String> jackLines = vmMaps.get(vmFileName);
+
+        if(jackLines == null) {
+
+            jackLines = new ArrayList<String>();
+
+            File mapFile = new File(directory, vmFileName + ".map");
+
+            if(mapFile.isFile()) {
+
+                BufferedReader reader = new BufferedReader(new FileReader(mapFile));
+
+                try {
+
+                    String line;
+
+                    while((line = reader.readLine()) != null) {
+
+                        // drop the vm line, which is the line number
+                        jackLines.add(line.substring(line.indexOf('\t') + 1));
+                    }
+
+                } finally {
+                    reader.close();
+                }
+            }
+
+            vmMaps.put(vmFileName, jackLines);
+        }
+
+        if(vmLine < 1 || vmLine > jackLines.size()) {
+            return UNKNOWN;
+        }
+
+        return jackLines.get(vmLine - 1);
+    }
+
+    /**
+     * Reads a command map and writes the composed map
+     *
+     * @param commandMap the command map written by the vm translator
+     * @param romSize    the number of instructions of the program,
+     *                   which must be the size in the command map
+     * @param out        where the composed map is written
+     * @throws IOException if a map can not be read, or the command
+     *                     map is not for a program of that size
+     */
+    public void compose(BufferedReader commandMap, int romSize, Writer out) throws IOException {
+
+        // The fields of the command whose code has not ended yet
+        String[] command = null;
+
+        String line;
+
+        while((line = commandMap.readLine()) != null) {
+
+            String[] fields = line.split("\t");
+            int address = Integer.parseInt(fields[0]);
+
+            if(command != null) {
+
+                out.write(command[0] + "\t" + address + "\t" + command[3] + "\t" + command[1] + "\t" + command[2]
+                        + "\t" + jackLine(command[1], Integer.parseInt(command[2])) + "\n");
+            }
+
+            if(fields.length == 1) {
+
+                if(address != romSize) {
+                    throw new IOException("The command map is for a program of " + address
+                            + " instructions, not " + romSize);
+                }
+
+                return;
+            }
+
+            command = fields;
+        }
+
+        throw new IOException("The command map has no program size on its last line");
+    }
+
+    /**
+     * Composes the command map of an assembled file and
+     * writes the composed map next to the output file
+     *
+     * @param inputFileName  the .asm file name, the command map
+     *                       is this name followed by .map
+     * @param outputFileName the .hack or .bin file name, the composed
+     *                       map is written to this name followed by .map
+     * @param romSize        the number of instructions of the program
+     */
+    static void composeFile(String inputFileName, String outputFileName, int romSize) throws IOException {
+
+        File commandMapFile = new File(inputFileName + ".map");
+
+        if(!commandMapFile.isFile()) {
+            throw new IOException("No command map " + commandMapFile.getPath());
+        }
+
+        SourceMap sourceMap = new SourceMap(commandMapFile.getAbsoluteFile().getParentFile());
+
+        BufferedReader commandMap = new BufferedReader(new FileReader(commandMapFile));
+
+        try {
+
+            Writer out = new BufferedWriter(new FileWriter(outputFileName + ".map"));
+
+            try {
+                sourceMap.compose(commandMap, romSize, out);
+            } finally {
+                out.close();
+            }
+
+        } finally {
+            commandMap.close();
+        }
+    }
+}
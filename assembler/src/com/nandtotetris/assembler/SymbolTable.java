@@ -1,49 +1,185 @@
 package com.nandtotetris.assembler;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * This class stores <symbol,value> pairs.
  *
+ * The pairs are kept in an open addressing hash table with linear
+ * probing: the symbols and their addresses are stored in two parallel
+ * arrays, so addresses are never boxed.
+ *
  * @author gaganpreet1810@gmail.com
  */
 public class SymbolTable {
 
-    private Map<String,Integer> table;
+    // Returned by getAddress for a symbol not in the table
+    public static final int NOT_FOUND = -1;
+
+    // Number of symbols the table is sized for when none is given
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // The symbols, null for an empty slot.
+    // The length is always a power of 2.
+    private String[] symbols;
+
+    // addresses[i] is the address of symbols[i]
+    private int[] addresses;
+
+    // The number of symbols in the table
+    private int size;
 
     /**
      * Initializes a new empty symbol table
      */
     public SymbolTable() {
-        table = new HashMap<String,Integer>();
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Initializes a new empty symbol table that holds the given
+     * number of symbols without growing
+     *
+     * @param capacity the expected number of symbols
+     */
+    public SymbolTable(int capacity) {
+
+        int nSlots = slotsFor(capacity);
+
+        symbols = new String[nSlots];
+        addresses = new int[nSlots];
+        size = 0;
+    }
+
+    /**
+     * Returns the number of slots needed to keep the table
+     * at most half full with the given number of symbols
+     */
+    private static int slotsFor(int capacity) {
+
+        int nSlots = 16;
+
+        while(nSlots < 2 * capacity) {
+            nSlots = nSlots * 2;
+        }
+
+        return nSlots;
+    }
+
+    /**
+     * Returns the slot holding the symbol, or the empty
+     * slot where it would be added
+     */
+    private int slotOf(String symbol) {
+
+        int mask = symbols.length - 1;
+        int hash = symbol.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        while(symbols[slot] != null && !symbols[slot].equals(symbol)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
     }
 
     /**
-     * Adds a <symbol,address> entry to the symbol table
-     * Should only be called when contains returns false
+     * Grows the table, if needed, so that it holds the given
+     * number of symbols without growing again
+     *
+     * @param capacity the expected number of symbols
+     */
+    public void ensureCapacity(int capacity) {
+
+        if(2 * capacity <= symbols.length)
+            return;
+
+        String[] oldSymbols = symbols;
+        int[] oldAddresses = addresses;
+
+        symbols = new String[slotsFor(capacity)];
+        addresses = new int[symbols.length];
+
+        for(int i = 0; i < oldSymbols.length; i++) {
+
+            if(oldSymbols[i] != null) {
+                int slot = slotOf(oldSymbols[i]);
+                symbols[slot] = oldSymbols[i];
+                addresses[slot] = oldAddresses[i];
+            }
+        }
+    }
+
+    /**
+     * Stores a symbol in the given empty slot
+     */
+    private void add(int slot, String symbol, int address) {
+
+        symbols[slot] = symbol;
+        addresses[slot] = address;
+        size = size + 1;
+
+        if(2 * size > symbols.length) {
+            ensureCapacity(symbols.length);
+        }
+    }
+
+    /**
+     * Adds a <symbol,address> entry to the symbol table.
+     * Replaces the address if the symbol is already present.
      *
      * @param symbol The symbol to add
      * @param address The address corresponding to the symbol
      */
-    public void addEntry(String symbol,Integer address) {
-        table.put(symbol, address);
-        return;
+    public void addEntry(String symbol, int address) {
+
+        int slot = slotOf(symbol);
+
+        if(symbols[slot] != null) {
+            addresses[slot] = address;
+        }
+        else {
+            add(slot, symbol, address);
+        }
+    }
+
+    /**
+     * Returns the address of a symbol, adding the symbol with the
+     * given address if it is not yet in the symbol table.
+     * Looks the symbol up only once.
+     *
+     * @param symbol              The symbol to look up
+     * @param nextVariableAddress The address to give the symbol
+     *                            if it is not present
+     * @return the address of the symbol
+     */
+    public int getOrAssign(String symbol, int nextVariableAddress) {
+
+        int slot = slotOf(symbol);
+
+        if(symbols[slot] != null)
+            return addresses[slot];
+
+        add(slot, symbol, nextVariableAddress);
+
+        return nextVariableAddress;
     }
 
     /**
      * Adds pre defined symbols to the symbol table
      */
     public void addPreDefinedSymbols() {
-        table.put("SP",0);   table.put("LCL",1); table.put("ARG",2); table.put("THIS",3);
-        table.put("THAT",4);
-        table.put("R0",0);   table.put("R1",1);  table.put("R2",2);
-        table.put("R3",3);   table.put("R4",4);  table.put("R5",5);  table.put("R6",6);
-        table.put("R7",7);   table.put("R8",8);  table.put("R9",9);  table.put("R10",10);
-        table.put("R11",11); table.put("R12",12);table.put("R13",13);table.put("R14",14);
-        table.put("R15",15);
-        table.put("SCREEN",16384);
-        table.put("KBD", 24576);
+        addEntry("SP",0);   addEntry("LCL",1); addEntry("ARG",2); addEntry("THIS",3);
+        addEntry("THAT",4);
+        addEntry("R0",0);   addEntry("R1",1);  addEntry("R2",2);
+        addEntry("R3",3);   addEntry("R4",4);  addEntry("R5",5);  addEntry("R6",6);
+        addEntry("R7",7);   addEntry("R8",8);  addEntry("R9",9);  addEntry("R10",10);
+        addEntry("R11",11); addEntry("R12",12);addEntry("R13",13);addEntry("R14",14);
+        addEntry("R15",15);
+        addEntry("SCREEN",16384);
+        addEntry("KBD", 24576);
     }
 
     /**
@@ -54,17 +190,45 @@ public class SymbolTable {
      * @return true if symbol table contains <symbol,value> pair
      */
     public Boolean contains(String symbol) {
-        return table.containsKey(symbol);
+        return symbols[slotOf(symbol)] != null;
     }
 
     /**
      * returns the address associated with an input symbol
-     * Should only be called when contains returns true.
      *
      * @param symbol
-     * @return the integer address associated with symbol
+     * @return the integer address associated with symbol,
+     *         NOT_FOUND if the symbol is not in the table
+     */
+    public int getAddress(String symbol) {
+
+        int slot = slotOf(symbol);
+
+        return symbols[slot] != null ? addresses[slot] : NOT_FOUND;
+    }
+
+    /**
+     * returns the number of symbols in the symbol table
      */
-    public Integer getAddress(String symbol) {
-        return table.get(symbol);
+    public int size() {
+        return size;
+    }
+
+    /**
+     * returns all <symbol,address> entries of the symbol table
+     *
+     * @return an unmodifiable copy of the entries
+     */
+    public Map<String,Integer> getEntries() {
+
+        Map<String,Integer> entries = new HashMap<String,Integer>();
+
+        for(int i = 0; i < symbols.length; i++) {
+            if(symbols[i] != null) {
+                entries.put(symbols[i], addresses[i]);
+            }
+        }
+
+        return Collections.unmodifiableMap(entries);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package com.nandtotetris.assembler.test;
+
+import com.nandtotetris.assembler.AssembledProgram;
+import com.nandtotetris.assembler.Assembler;
+import com.nandtotetris.assembler.HackReader;
+import com.nandtotetris.assembler.RomBuilder;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for unit testing HackReader class, reading back
+ * both output formats of the assembler
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class HackReaderTest {
+
+    private static final String PROGRAM =
+            "@i\nM=1\n(LOOP)\n@i\nD=M\n@100\nD=D-A\n@END\nD;JGT\n@i\nM=M+1\n@LOOP\n0;JMP\n(END)\n@END\n0;JMP\n";
+
+    /**
+     * Gives the instructions of PROGRAM to a program started with
+     * Assembler.newProgram
+     */
+    private static void giveProgram(RomBuilder program) {
+
+        program.instructionA("i");
+        program.instructionC("M", "1", "");
+        program.instructionL("LOOP");
+        program.instructionA("i");
+        program.instructionC("D", "M", "");
+        program.instructionA("100");
+        program.instructionC("D", "D-A", "");
+        program.instructionA("END");
+        program.instructionC("", "D", "JGT");
+        program.instructionA("i");
+        program.instructionC("M", "M+1", "");
+        program.instructionA("LOOP");
+        program.instructionC("", "0", "JMP");
+        program.instructionL("END");
+        program.instructionA("END");
+        program.instructionC("", "0", "JMP");
+    }
+
+    /**
+     * Writes PROGRAM to a temporary file and reads it back
+     */
+    private static HackReader writeAndRead(boolean writeBinary, boolean writeSymbols) throws IOException {
+
+        File file = File.createTempFile("HackReaderTest", writeBinary ? ".bin" : ".hack");
+        file.deleteOnExit();
+
+        Assembler assembler = new Assembler();
+        assembler.setWriteBinary(writeBinary);
+        assembler.setWriteSymbols(writeSymbols);
+
+        RomBuilder program = assembler.newProgram();
+        giveProgram(program);
+        assembler.writeProgram(program, file.getPath());
+
+        return new HackReader(file.getPath());
+    }
+
+    @Test
+    public void textFormatIsReadBack() throws IOException {
+
+        AssembledProgram expected = new Assembler().assemble(PROGRAM);
+        HackReader reader = writeAndRead(false, false);
+
+        assertArrayEquals(expected.getInstructions(), reader.getInstructions());
+        assertTrue(reader.getSymbols().isEmpty());
+    }
+
+    @Test
+    public void binaryFormatIsReadBack() throws IOException {
+
+        AssembledProgram expected = new Assembler().assemble(PROGRAM);
+        HackReader reader = writeAndRead(true, false);
+
+        assertArrayEquals(expected.getInstructions(), reader.getInstructions());
+        assertTrue(reader.getSymbols().isEmpty());
+    }
+
+    @Test
+    public void symbolSectionIsReadBack() throws IOException {
+
+        AssembledProgram expected = new Assembler().assemble(PROGRAM);
+        HackReader reader = writeAndRead(true, true);
+
+        assertArrayEquals(expected.getInstructions(), reader.getInstructions());
+        assertEquals(expected.getSymbols(), reader.getSymbols());
+        assertEquals(16, reader.getSymbols().get("i").intValue());
+        assertEquals(2, reader.getSymbols().get("LOOP").intValue());
+    }
+
+    @Test
+    public void bothFormatsHoldTheSameInstructions() throws IOException {
+        assertArrayEquals(writeAndRead(false, false).getInstructions(), writeAndRead(true, true).getInstructions());
+    }
+
+    @Test(expected = IOException.class)
+    public void textThatIsNotBinaryIsRejected() throws IOException {
+
+        File file = File.createTempFile("HackReaderTest", ".hack");
+        file.deleteOnExit();
+
+        Writer writer = new FileWriter(file);
+
+        try {
+            writer.write("0000000000000010\n@2\n");
+        } finally {
+            writer.close();
+        }
+
+        new HackReader(file.getPath());
+    }
+}
@@ -0,0 +1,109 @@
+package com.nandtotetris.assembler.test;
+
+import com.nandtotetris.assembler.RomBuilder;
+import com.nandtotetris.assembler.SymbolTable;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for unit testing RomBuilder class, which resolves
+ * forward references by backpatching
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class RomBuilderTest {
+
+    // 0;JMP
+    private static final int JUMP = 0xea87;
+
+    private static RomBuilder newRomBuilder(SymbolTable symbolTable) {
+
+        symbolTable.addPreDefinedSymbols();
+
+        return new RomBuilder(symbolTable);
+    }
+
+    @Test
+    public void forwardReferenceIsPatched() {
+
+        RomBuilder romBuilder = newRomBuilder(new SymbolTable());
+
+        romBuilder.instructionA("END");
+        romBuilder.instructionC("", "0", "JMP");
+        romBuilder.instructionL("END");
+        romBuilder.instructionA("END");
+
+        assertArrayEquals(new int[] {2, JUMP, 2}, romBuilder.finish());
+    }
+
+    @Test
+    public void everyUseOfAForwardReferenceIsPatched() {
+
+        RomBuilder romBuilder = newRomBuilder(new SymbolTable());
+
+        romBuilder.instructionA("LOOP");
+        romBuilder.instructionA("OTHER");
+        romBuilder.instructionA("LOOP");
+        romBuilder.instructionA("LOOP");
+        romBuilder.instructionL("OTHER");
+        romBuilder.instructionA("5");
+        romBuilder.instructionL("LOOP");
+
+        assertArrayEquals(new int[] {5, 4, 5, 5, 5}, romBuilder.finish());
+    }
+
+    @Test
+    public void backwardReferenceAndPredefinedSymbolsAreResolvedAtOnce() {
+
+        RomBuilder romBuilder = newRomBuilder(new SymbolTable());
+
+        romBuilder.instructionL("START");
+        romBuilder.instructionA("SCREEN");
+        romBuilder.instructionA("R13");
+        romBuilder.instructionA("START");
+
+        assertArrayEquals(new int[] {16384, 13, 0}, romBuilder.finish());
+    }
+
+    @Test
+    public void variablesAreAllocatedInOrderOfFirstUse() {
+
+        SymbolTable symbolTable = new SymbolTable();
+        RomBuilder romBuilder = newRomBuilder(symbolTable);
+
+        romBuilder.instructionA("i");
+        romBuilder.instructionA("sum");
+        romBuilder.instructionA("END");
+        romBuilder.instructionA("i");
+        romBuilder.instructionL("END");
+
+        // END is a label, declared after its use, not a variable
+        assertArrayEquals(new int[] {16, 17, 4, 16}, romBuilder.finish());
+
+        assertEquals(16, symbolTable.getAddress("i"));
+        assertEquals(17, symbolTable.getAddress("sum"));
+        assertEquals(4, symbolTable.getAddress("END"));
+    }
+
+    @Test
+    public void romGrowsPastItsInitialSize() {
+
+        int nInstruction = 5000;
+
+        RomBuilder romBuilder = newRomBuilder(new SymbolTable());
+
+        int[] expected = new int[nInstruction];
+
+        for(int i = 0; i < nInstruction; i++) {
+            romBuilder.instructionA("END");
+            expected[i] = nInstruction;
+        }
+
+        romBuilder.instructionL("END");
+
+        assertEquals(nInstruction, romBuilder.size());
+        assertArrayEquals(expected, romBuilder.finish());
+    }
+}
@@ -0,0 +1,137 @@
+package com.nandtotetris.assembler.test;
+
+import com.nandtotetris.assembler.SymbolTable;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for unit testing SymbolTable class
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class SymbolTableTest {
+
+    @Test
+    public void entriesAreFound() {
+
+        SymbolTable symbolTable = new SymbolTable();
+
+        symbolTable.addEntry("LOOP", 10);
+        symbolTable.addEntry("END", 20);
+
+        assertEquals(10, symbolTable.getAddress("LOOP"));
+        assertEquals(20, symbolTable.getAddress("END"));
+        assertTrue(symbolTable.contains("LOOP"));
+        assertFalse(symbolTable.contains("loop"));
+        assertEquals(SymbolTable.NOT_FOUND, symbolTable.getAddress("loop"));
+        assertEquals(2, symbolTable.size());
+    }
+
+    @Test
+    public void addingAnEntryAgainReplacesItsAddress() {
+
+        SymbolTable symbolTable = new SymbolTable();
+
+        symbolTable.addEntry("LOOP", 10);
+        symbolTable.addEntry("LOOP", 30);
+
+        assertEquals(30, symbolTable.getAddress("LOOP"));
+        assertEquals(1, symbolTable.size());
+    }
+
+    @Test
+    public void tableGrowsWithoutLosingEntries() {
+
+        int nSymbol = 10000;
+
+        SymbolTable symbolTable = new SymbolTable(1);
+
+        for(int i = 0; i < nSymbol; i++) {
+            symbolTable.addEntry("symbol" + i, i);
+        }
+
+        assertEquals(nSymbol, symbolTable.size());
+
+        for(int i = 0; i < nSymbol; i++) {
+            assertEquals(i, symbolTable.getAddress("symbol" + i));
+        }
+
+        assertEquals(SymbolTable.NOT_FOUND, symbolTable.getAddress("symbol" + nSymbol));
+    }
+
+    @Test
+    public void ensureCapacityKeepsEntries() {
+
+        SymbolTable symbolTable = new SymbolTable();
+        symbolTable.addPreDefinedSymbols();
+
+        symbolTable.ensureCapacity(5000);
+
+        assertEquals(23, symbolTable.size());
+        assertEquals(16384, symbolTable.getAddress("SCREEN"));
+        assertEquals(15, symbolTable.getAddress("R15"));
+    }
+
+    @Test
+    public void getOrAssignAddsOnlyNewSymbols() {
+
+        SymbolTable symbolTable = new SymbolTable();
+        symbolTable.addEntry("LOOP", 4);
+
+        // already present: the address given is not used
+        assertEquals(4, symbolTable.getOrAssign("LOOP", 16));
+        assertEquals(1, symbolTable.size());
+
+        // new: the symbol is added with the address given
+        assertEquals(16, symbolTable.getOrAssign("i", 16));
+        assertEquals(2, symbolTable.size());
+        assertEquals(16, symbolTable.getOrAssign("i", 17));
+        assertEquals(2, symbolTable.size());
+    }
+
+    @Test
+    public void predefinedSymbols() {
+
+        SymbolTable symbolTable = new SymbolTable();
+        symbolTable.addPreDefinedSymbols();
+
+        assertEquals(0, symbolTable.getAddress("SP"));
+        assertEquals(1, symbolTable.getAddress("LCL"));
+        assertEquals(2, symbolTable.getAddress("ARG"));
+        assertEquals(3, symbolTable.getAddress("THIS"));
+        assertEquals(4, symbolTable.getAddress("THAT"));
+        assertEquals(24576, symbolTable.getAddress("KBD"));
+
+        for(int i = 0; i < 16; i++) {
+            assertEquals(i, symbolTable.getAddress("R" + i));
+        }
+    }
+
+    @Test
+    public void getEntriesHoldsEveryEntry() {
+
+        SymbolTable symbolTable = new SymbolTable(1);
+
+        for(int i = 0; i < 100; i++) {
+            symbolTable.addEntry("v" + i, 16 + i);
+        }
+
+        Map<String,Integer> entries = symbolTable.getEntries();
+
+        assertEquals(100, entries.size());
+
+        for(int i = 0; i < 100; i++) {
+            assertEquals(16 + i, entries.get("v" + i).intValue());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void getEntriesCanNotBeModified() {
+        new SymbolTable().getEntries().put("LOOP", 1);
+    }
+}
@@ -0,0 +1,113 @@
+package com.nandtotetris.vmtranslator;
+
+import com.nandtotetris.assembler.InstructionSink;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Writes hack assembly code as text to an .asm file, or to any writer.
+ *
+ * The output file is written in blocks of a configurable size. It is
+ * only flushed when a block fills up, on flush and on close.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class AsmWriter implements InstructionSink {
+
+    private PrintWriter mOutputFile;
+
+    /**
+     * Opens the output file and gets
+     * ready to write into it.
+     *
+     * @param file       the file object corresponding
+     *                   to the output file
+     * @param bufferSize the number of chars buffered
+     *                   between writes to the file
+     * @throws IOException if the file can not be opened
+     */
+    public AsmWriter(File file, int bufferSize) throws IOException {
+        this(new FileWriter(file), bufferSize);
+    }
+
+    /**
+     * Gets ready to write into a writer, such as
+     * one for the standard output
+     *
+     * @param writer     the writer, closed by close
+     * @param bufferSize the number of chars buffered
+     *                   between writes to the writer
+     */
+    public AsmWriter(Writer writer, int bufferSize) {
+        mOutputFile = new PrintWriter(new BufferedWriter(writer, bufferSize));
+    }
+
+    @Override
+    public void comment(String text) {
+
+        mOutputFile.print("// ");
+        mOutputFile.println(text);
+    }
+
+    @Override
+    public void instructionA(String argument) {
+
+        mOutputFile.print('@');
+        mOutputFile.println(argument);
+    }
+
+    @Override
+    public void instructionC(String dest, String comp, String jump) {
+
+        if(!dest.isEmpty()) {
+            mOutputFile.print(dest);
+            mOutputFile.print('=');
+        }
+
+        mOutputFile.print(comp);
+
+        if(!jump.isEmpty()) {
+            mOutputFile.print(';');
+            mOutputFile.print(jump);
+        }
+
+        mOutputFile.println();
+    }
+
+    @Override
+    public void instructionL(String label) {
+
+        mOutputFile.print('(');
+        mOutputFile.print(label);
+        mOutputFile.println(')');
+    }
+
+    /**
+     * Writes out the output buffered so far
+     */
+    public void flush() {
+        mOutputFile.flush();
+    }
+
+    /**
+     * Writes out the buffered output and closes the output file
+     */
+    public void close() {
+        mOutputFile.close();
+    }
+
+    /**
+     * Returns whether writing failed. The writes themselves do not
+     * report errors, a closed pipe for instance.
+     *
+     * @return true if writing, flushing or closing failed
+     */
+    public boolean checkError() {
+        return mOutputFile.checkError();
+    }
+}
@@ -0,0 +1,22 @@
+package com.nandtotetris.vmtranslator;
+
+/**
+ * The code written by CodeWriter.writeInit before the
+ * translated vm code, which starts the program.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public enum Bootstrap {
+
+    // no code, the program starts at the first vm command.
+    // For tests which set up the stack themselves.
+    NONE,
+
+    // SP=256, then call Sys.init, as the vm specification
+    // describes. The tests of project 08 expect its frame.
+    STANDARD,
+
+    // SP=LCL=ARG=256, then a jump to Sys.init. Sys.init never
+    // returns, so the frame of the call is never used.
+    COMPACT
+}
@@ -0,0 +1,100 @@
+package com.nandtotetris.vmtranslator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The functions of a vm program and the functions each of them calls.
+ * Functions are only ever reached through call commands (and the call
+ * to Sys.init in the bootstrap code), so a function which can not be
+ * reached through calls from Sys.init is never run.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class CallGraph {
+
+    // The functions called by each function, in the
+    // order the functions are defined
+    private Map<String, Set<String>> mCallees;
+
+    public CallGraph() {
+        mCallees = new LinkedHashMap<String, Set<String>>();
+    }
+
+    /**
+     * Adds the functions defined in a vm file and the calls they make
+     *
+     * @param commands the commands of the file
+     */
+    public void addCommands(List<VMCommand> commands) {
+
+        Set<String> callees = null;
+
+        for(VMCommand command : commands) {
+
+            if(command.getType() == CommandTypeVM.C_FUNCTION) {
+
+                callees = mCallees.get(command.getArg1());
+
+                if(callees == null) {
+                    callees = new LinkedHashSet<String>();
+                    mCallees.put(command.getArg1(), callees);
+                }
+
+            } else if(command.getType() == CommandTypeVM.C_CALL && callees != null) {
+                callees.add(command.getArg1());
+            }
+        }
+    }
+
+    /**
+     * @return true if a function is defined in the program
+     */
+    public boolean isDefined(String functionName) {
+        return mCallees.containsKey(functionName);
+    }
+
+    /**
+     * @return the number of functions defined in the program
+     */
+    public int getFunctionCount() {
+        return mCallees.size();
+    }
+
+    /**
+     * Returns the functions which can be reached through calls
+     * from a function, including the function itself
+     *
+     * @param root the function to start from
+     */
+    public Set<String> reachableFrom(String root) {
+
+        Set<String> reachable = new HashSet<String>();
+        List<String> toVisit = new ArrayList<String>();
+
+        reachable.add(root);
+        toVisit.add(root);
+
+        while(!toVisit.isEmpty()) {
+
+            Set<String> callees = mCallees.get(toVisit.remove(toVisit.size() - 1));
+
+            if(callees == null) {
+                continue;
+            }
+
+            for(String callee : callees) {
+                if(reachable.add(callee)) {
+                    toVisit.add(callee);
+                }
+            }
+        }
+
+        return reachable;
+    }
+}
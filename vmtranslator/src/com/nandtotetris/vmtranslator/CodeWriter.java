@@ -1,8 +1,10 @@
 package com.nandtotetris.vmtranslator;
 
+import com.nandtotetris.assembler.InstructionSink;
+
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.Writer;
 
 /**
  * Writes hack assembly code to an output file.
@@ -11,13 +13,43 @@ import java.io.PrintWriter;
  * each vm command.
  *
  * The output is written using 4 "emit..." methods, one for writing
- * comments and one each for hack C,A,L commands.
+ * comments and one each for hack C,A,L commands. They give the code
+ * to an InstructionSink: an AsmWriter writing the output file, or
+ * any other sink such as the assembler.
+ *
+ * The output file is written in blocks of a configurable size. It is
+ * only flushed when a block fills up, on checkpoint and on close.
+ *
+ * The code can be passed through a PeepholeOptimizer on its way
+ * to the sink.
  *
  * @author gaganpreet1810@gmail.com
  */
 public class CodeWriter {
 
-    private PrintWriter mOutputFile;
+    // Size in chars of the output buffer used when none is given
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    // The output file, null when writing to a sink given by the caller
+    private AsmWriter mOutputFile;
+
+    // The sink the emit methods give the code to
+    private InstructionSink mSink;
+
+    // The sink given the code, after the peephole optimizer
+    // and the profile if any
+    private InstructionSink mOutput;
+
+    // The optimizer in front of the sink, null if not used
+    private PeepholeOptimizer mPeepholeOptimizer;
+
+    // Counts the code of each function on its way to the
+    // sink, after the optimizer, null if not used
+    private FunctionProfile mProfile;
+
+    // Maps the code to the vm commands on its way to the
+    // sink, after the optimizer, null if not used
+    private CommandMap mCommandMap;
 
     private String mCurrentFileName;
 
@@ -33,6 +65,64 @@ public class CodeWriter {
     // made up to this point
     private int mFunctionCallCount;
 
+    // A running count of the number of functions inlined,
+    // to make the labels of each copy unique
+    private int mInlineCount;
+
+    // The file and function being translated, while
+    // the code of an inlined function is written
+    private String mCallerFileName;
+    private String mCallerFunctionName;
+
+    // Whether a return of the inlined function being
+    // written jumps to the end of its code
+    private boolean mInlineReturnJumps;
+
+    // Put before the labels made unique with the counts above,
+    // so that code writers translating different files in
+    // parallel do not define the same labels
+    private String mLabelPrefix;
+
+    // Which bootstrap code writeInit writes
+    private Bootstrap mBootstrap;
+
+    // Where the vm code starts when the shared routines
+    // are written without bootstrap code before them. The
+    // labels made up here start with a '$', which Parser
+    // rejects in vm names, so they never clash with them.
+    private static final String START_LABEL = "$START";
+
+    // Labels of the shared call and return routines
+    private static final String CALL_ROUTINE = "$CALL";
+    private static final String RETURN_ROUTINE = "$RETURN";
+
+    // Whether calls and returns jump to the shared routines
+    // instead of being written out in full every time
+    private boolean mSharedCallReturn;
+
+    // Labels of the shared comparison routines
+    private static final String EQ_ROUTINE = "$EQ";
+    private static final String GT_ROUTINE = "$GT";
+    private static final String LT_ROUTINE = "$LT";
+
+    // Whether eq, gt and lt jump to the shared comparison
+    // routines instead of being written out in full every time
+    private boolean mSharedComparisons;
+
+    // Whether the top of the stack is kept in D between
+    // vm commands, within a basic block
+    private boolean mCacheStackTop;
+
+    // True while D holds the top of the stack. The stack in
+    // memory then ends just below it: SP points to where the
+    // top would be stored.
+    private boolean mStackTopInD;
+
+    // Largest segment index pushed with a chain of A=A+1
+    // instead of an addition. A pop chains up to twice as far,
+    // since its addition needs more instructions.
+    private static final int INDEX_CHAIN_LIMIT = 3;
+
     /**
      * Opens the output file and gets
      * ready to write into it.
@@ -41,19 +131,188 @@ public class CodeWriter {
      *             to the output file
      */
     public CodeWriter(File file) {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens the output file and gets
+     * ready to write into it.
+     *
+     * @param file       the file object corresponding
+     *                   to the output file
+     * @param bufferSize the number of chars buffered
+     *                   between writes to the file
+     */
+    public CodeWriter(File file, int bufferSize) {
 
         try {
 
-            mOutputFile = new PrintWriter(file);
+            mOutputFile = new AsmWriter(file, bufferSize);
+            mSink = mOutputFile;
+            mOutput = mOutputFile;
             mComparisonCommandCount = 0;
             mFunctionCallCount = 0;
+            mLabelPrefix = "";
+            mBootstrap = Bootstrap.STANDARD;
 
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
     }
 
+    /**
+     * Gets ready to write assembly text to a writer, such as
+     * one for the standard output.
+     *
+     * @param writer     the writer, closed by close
+     * @param bufferSize the number of chars buffered
+     *                   between writes to the writer
+     */
+    public CodeWriter(Writer writer, int bufferSize) {
+        this(new AsmWriter(writer, bufferSize));
+    }
+
+    private CodeWriter(AsmWriter outputFile) {
+
+        this((InstructionSink) outputFile);
+        mOutputFile = outputFile;
+    }
+
+    /**
+     * Gets ready to give the output to an instruction sink
+     * instead of writing assembly text.
+     *
+     * @param sink the sink receiving the instructions
+     */
+    public CodeWriter(InstructionSink sink) {
+
+        mSink = sink;
+        mOutput = sink;
+        mComparisonCommandCount = 0;
+        mFunctionCallCount = 0;
+        mLabelPrefix = "";
+        mBootstrap = Bootstrap.STANDARD;
+
+    }
+
+    /**
+     * Passes all code emitted from now on through a peephole
+     * optimizer. Should be called before writeInit.
+     */
+    public void enablePeepholeOptimizer() {
+
+        if(mPeepholeOptimizer == null) {
+            mPeepholeOptimizer = new PeepholeOptimizer(mSink);
+            mSink = mPeepholeOptimizer;
+        }
+
+    }
+
+    /**
+     * Counts the commands and instructions of each function as they
+     * are written. Should be called before enablePeepholeOptimizer,
+     * so that the instructions counted are those after optimization,
+     * and before writeInit.
+     */
+    public void enableProfile() {
+
+        if(mProfile == null) {
+            mProfile = new FunctionProfile(mSink);
+            mSink = mProfile;
+        }
+
+    }
+
+    /**
+     * @return the function profile, null if not enabled
+     */
+    public FunctionProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Maps the code written to the vm commands it comes from. Should
+     * be called before enablePeepholeOptimizer, so that the addresses
+     * mapped are those after optimization, and before writeInit.
+     */
+    public void enableCommandMap() {
+
+        if(mCommandMap == null) {
+            mCommandMap = new CommandMap(mSink);
+            mSink = mCommandMap;
+        }
+
+    }
+
+    /**
+     * @return the command map, null if not enabled
+     */
+    public CommandMap getCommandMap() {
+        return mCommandMap;
+    }
+
+    /**
+     * @return the peephole optimizer, null if not enabled
+     */
+    public PeepholeOptimizer getPeepholeOptimizer() {
+        return mPeepholeOptimizer;
+    }
+
+    /**
+     * Sets the bootstrap code written by writeInit.
+     * STANDARD by default.
+     *
+     * @param bootstrap the bootstrap code to write
+     */
+    public void setBootstrap(Bootstrap bootstrap) {
+        mBootstrap = bootstrap;
+    }
+
+    /**
+     * Sets whether call and return commands use one shared call
+     * routine and one shared return routine, written by writeInit.
+     * This makes a call about 14 instructions and a return 2
+     * instead of about 45 each, for a few more instructions
+     * executed per call.
+     *
+     * Off by default. Must be set before writeInit.
+     *
+     * @param sharedCallReturn true to use the shared routines
+     */
+    public void setSharedCallReturn(boolean sharedCallReturn) {
+        mSharedCallReturn = sharedCallReturn;
+    }
+
+    /**
+     * Sets whether eq, gt and lt commands use one shared routine
+     * per command, written by writeInit. This makes a comparison
+     * 4 instructions instead of about 25, for a few more
+     * instructions executed per comparison.
+     *
+     * Off by default. Must be set before writeInit.
+     *
+     * @param sharedComparisons true to use the shared routines
+     */
+    public void setSharedComparisons(boolean sharedComparisons) {
+        mSharedComparisons = sharedComparisons;
+    }
+
+    /**
+     * Sets whether the top of the stack is kept in D between vm
+     * commands instead of being stored and loaded again by every
+     * command. It is stored to memory (spilled) before labels,
+     * jumps, calls and returns, so D never holds it across a
+     * basic block boundary.
+     *
+     * Off by default.
+     *
+     * @param cacheStackTop true to keep the top of the stack in D
+     */
+    public void setCacheStackTop(boolean cacheStackTop) {
+        mCacheStackTop = cacheStackTop;
+    }
+
     /**
      * Informs the code writer that the translations
      * of a new VM file is started.
@@ -65,6 +324,36 @@ public class CodeWriter {
         mCurrentFileName = newVMFile.getName().replaceAll(".vm","");
     }
 
+    /**
+     * Informs the code writer that the commands which follow
+     * come from a vm file of a given name, for input which
+     * is not read from files. Statics are named after it.
+     *
+     * @param fileName the name of the vm file, without
+     *                 the .vm extension
+     */
+    public void setCurrentFileName(String fileName) {
+        mCurrentFileName = fileName;
+    }
+
+    /**
+     * Sets a prefix for the labels the code writer numbers itself,
+     * such as the return addresses of calls. Code writers with
+     * different prefixes never define the same label.
+     *
+     * @param labelPrefix the prefix, empty by default
+     */
+    public void setLabelPrefix(String labelPrefix) {
+        mLabelPrefix = labelPrefix;
+    }
+
+    /**
+     * Returns a label made unique by a running count
+     */
+    private String uniqueLabel(String name, int count) {
+        return mLabelPrefix + name + "_" + Integer.toString(count);
+    }
+
     /**
      * Used by label, goto and if-goto commands to append function
      * name to the label.
@@ -80,8 +369,28 @@ public class CodeWriter {
      */
     public void emitComment(String commentString) {
 
-        mOutputFile.println("// " + commentString);
-        mOutputFile.flush();
+        if(mCommandMap != null) {
+            mCommandMap.expectComment(null, 0);
+        }
+
+        mSink.comment(commentString);
+    }
+
+    /**
+     * Emits the comment of a vm command, before its code. The
+     * command map maps the code which follows to the command.
+     *
+     * @param commentString the string to be written as a comment
+     * @param lineNumber    the line of the command in the
+     *                      current vm file
+     */
+    public void emitComment(String commentString, int lineNumber) {
+
+        if(mCommandMap != null) {
+            mCommandMap.expectComment(mCurrentFileName + ".vm", lineNumber);
+        }
+
+        mSink.comment(commentString);
     }
 
     /**
@@ -91,9 +400,7 @@ public class CodeWriter {
      */
     public void emitInstructionL(String label) {
 
-        mOutputFile.println("(" + label + ")");
-        mOutputFile.flush();
-
+        mSink.instructionL(label);
     }
 
     /**
@@ -108,20 +415,7 @@ public class CodeWriter {
      */
     public void emitInstructionC(String dest,String comp,String jump) {
 
-        String line = "";
-
-        if(!dest.isEmpty()) {
-            line = line + dest + "=";
-        }
-
-        line = line + comp;
-
-        if(!jump.isEmpty()) {
-            line = line + ";" + jump;
-        }
-
-        mOutputFile.println(line);
-        mOutputFile.flush();
+        mSink.instructionC(dest, comp, jump);
     }
 
     /**
@@ -130,11 +424,7 @@ public class CodeWriter {
      * @param argument the argument to the A instruction @argument
      */
     public void emitInstructionA(String argument) {
-
-        String line = "@" + argument;
-        mOutputFile.println(line);
-        mOutputFile.flush();
-
+        mSink.instructionA(argument);
     }
 
     /**
@@ -143,54 +433,258 @@ public class CodeWriter {
      */
     public void writeInit() {
 
+        switch (mBootstrap) {
+
+            case NONE:
+
+                // The shared routines must not be run into
+                if(mSharedCallReturn || mSharedComparisons) {
+                    emitInstructionA(START_LABEL);
+                    emitInstructionC("","0","JMP");
+                }
+
+                break;
+
+            case COMPACT:
+
+                writeCompactBootstrap();
+                break;
+
+            default:
+
+                writeStandardBootstrap();
+                break;
+        }
+
+        // Sys.init never returns, so the shared routines can
+        // follow without being run into
+        if(mSharedCallReturn) {
+            writeCallRoutine();
+            writeReturnRoutine();
+        }
+
+        if(mSharedComparisons) {
+            writeComparisonRoutine(EQ_ROUTINE,"JEQ");
+            writeComparisonRoutine(GT_ROUTINE,"JGT");
+            writeComparisonRoutine(LT_ROUTINE,"JLT");
+        }
+
+        if(mBootstrap == Bootstrap.NONE && (mSharedCallReturn || mSharedComparisons)) {
+            emitInstructionL(START_LABEL);
+        }
+
+    }
+
+    /**
+     * Writes the bootstrap code of the vm specification:
+     * SP=256, then call Sys.init
+     */
+    private void writeStandardBootstrap() {
+
         // SP=256
-        mOutputFile.println("@256");
-        mOutputFile.println("D=A");
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=D");
+        emitInstructionA("256");
+        emitInstructionC("D","A","");
+        emitInstructionA("SP");
+        emitInstructionC("M","D","");
 
         // set LCL, ARG, THIS, THAT
         // to known illegal values
 
         // LCL=-1
-        mOutputFile.println("@0");
-        mOutputFile.println("D=A");
-        mOutputFile.println("@1");
-        mOutputFile.println("D=D-A");
-        mOutputFile.println("@LCL");
-        mOutputFile.println("M=D");
+        emitInstructionA("0");
+        emitInstructionC("D","A","");
+        emitInstructionA("1");
+        emitInstructionC("D","D-A","");
+        emitInstructionA("LCL");
+        emitInstructionC("M","D","");
 
         // ARG=-2
-        mOutputFile.println("@0");
-        mOutputFile.println("D=A");
-        mOutputFile.println("@2");
-        mOutputFile.println("D=D-A");
-        mOutputFile.println("@ARG");
-        mOutputFile.println("M=D");
+        emitInstructionA("0");
+        emitInstructionC("D","A","");
+        emitInstructionA("2");
+        emitInstructionC("D","D-A","");
+        emitInstructionA("ARG");
+        emitInstructionC("M","D","");
 
         // THIS=-3
-        mOutputFile.println("@0");
-        mOutputFile.println("D=A");
-        mOutputFile.println("@3");
-        mOutputFile.println("D=D-A");
-        mOutputFile.println("@THIS");
-        mOutputFile.println("M=D");
+        emitInstructionA("0");
+        emitInstructionC("D","A","");
+        emitInstructionA("3");
+        emitInstructionC("D","D-A","");
+        emitInstructionA("THIS");
+        emitInstructionC("M","D","");
 
         // THAT=-4
-        mOutputFile.println("@0");
-        mOutputFile.println("D=A");
-        mOutputFile.println("@4");
-        mOutputFile.println("D=D-A");
-        mOutputFile.println("@THAT");
-        mOutputFile.println("M=D");
-
-        mOutputFile.flush();
+        emitInstructionA("0");
+        emitInstructionC("D","A","");
+        emitInstructionA("4");
+        emitInstructionC("D","D-A","");
+        emitInstructionA("THAT");
+        emitInstructionC("M","D","");
 
         // call Sys.init (defined in the file Sys.vm)
         writeCall("Sys.init",0);
 
     }
 
+    /**
+     * Writes bootstrap code which leaves the state Sys.init would
+     * start with after the standard bootstrap, but for the frame
+     * of the call, which is never returned to
+     */
+    private void writeCompactBootstrap() {
+
+        // SP=LCL=ARG=256
+        emitInstructionA("256");
+        emitInstructionC("D","A","");
+        emitInstructionA("SP");
+        emitInstructionC("M","D","");
+        emitInstructionA("LCL");
+        emitInstructionC("M","D","");
+        emitInstructionA("ARG");
+        emitInstructionC("M","D","");
+
+        // THIS=-3, THAT=-4, known illegal values
+        emitInstructionA("3");
+        emitInstructionC("D","-A","");
+        emitInstructionA("THIS");
+        emitInstructionC("M","D","");
+        emitInstructionA("THAT");
+        emitInstructionC("M","D-1","");
+
+        // goto Sys.init (defined in the file Sys.vm)
+        emitInstructionA("Sys.init");
+        emitInstructionC("","0","JMP");
+
+    }
+
+    /**
+     * Writes a shared comparison routine. It pops y and x, pushes
+     * true if x-y satisfies the jump condition, false otherwise,
+     * and returns. A comparison jumps to it with D=the return address.
+     *
+     * @param routine the label of the routine
+     * @param jump    the jump taken when the result is true
+     */
+    private void writeComparisonRoutine(String routine, String jump) {
+
+        emitInstructionL(routine);
+
+        // R13=return address
+        emitInstructionA("R13");
+        emitInstructionC("M","D","");
+
+        // SP=SP-1, D=y
+        emitInstructionA("SP");
+        emitInstructionC("AM","M-1","");
+        emitInstructionC("D","M","");
+
+        // D=x-y, x=true
+        emitInstructionC("A","A-1","");
+        emitInstructionC("D","M-D","");
+        emitInstructionC("M","-1","");
+
+        // leave x=true if the jump condition holds
+        emitInstructionA(routine + "_END");
+        emitInstructionC("","D",jump);
+
+        // otherwise x=false
+        emitInstructionA("SP");
+        emitInstructionC("A","M-1","");
+        emitInstructionC("M","0","");
+
+        // return to R13
+        emitInstructionL(routine + "_END");
+        emitInstructionA("R13");
+        emitInstructionC("A","M","");
+        emitInstructionC("","0","JMP");
+
+    }
+
+    /**
+     * Writes a comparison that jumps to a shared comparison routine
+     *
+     * @param routine the label of the routine
+     */
+    private void writeSharedComparison(String routine) {
+
+        String returnLabel = uniqueLabel("RETURN_COMPARISON", mComparisonCommandCount);
+
+        // D=return address
+        emitInstructionA(returnLabel);
+        emitInstructionC("D","A","");
+
+        emitInstructionA(routine);
+        emitInstructionC("","0","JMP");
+
+        emitInstructionL(returnLabel);
+
+        mComparisonCommandCount = mComparisonCommandCount + 1;
+    }
+
+    /**
+     * Writes the shared call routine. A call site jumps to it with
+     * R13=the function, R14=numArgs and R15=the return address.
+     * It does what writeCall would do inline.
+     */
+    private void writeCallRoutine() {
+
+        emitInstructionL(CALL_ROUTINE);
+
+        // push return address (R15)
+        emitInstructionA("R15");
+        emitInstructionC("D","M","");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
+        emitInstructionA("SP");
+        emitInstructionC("M","M+1","");
+
+        // push LCL, ARG, THIS, THAT
+        for (String segmentPointer : new String[] {"LCL","ARG","THIS","THAT"}) {
+            emitInstructionA(segmentPointer);
+            emitInstructionC("D","M","");
+            emitInstructionA("SP");
+            emitInstructionC("A","M","");
+            emitInstructionC("M","D","");
+            emitInstructionA("SP");
+            emitInstructionC("M","M+1","");
+        }
+
+        // ARG=SP-(R14+5)
+        emitInstructionA("R14");
+        emitInstructionC("D","M","");
+        emitInstructionA("5");
+        emitInstructionC("D","D+A","");
+        emitInstructionA("SP");
+        emitInstructionC("D","M-D","");
+        emitInstructionA("ARG");
+        emitInstructionC("M","D","");
+
+        // LCL=SP
+        emitInstructionA("SP");
+        emitInstructionC("D","M","");
+        emitInstructionA("LCL");
+        emitInstructionC("M","D","");
+
+        // transfer control to the function (R13)
+        emitInstructionA("R13");
+        emitInstructionC("A","M","");
+        emitInstructionC("","0","JMP");
+
+    }
+
+    /**
+     * Writes the shared return routine. A return command
+     * jumps to it.
+     */
+    private void writeReturnRoutine() {
+
+        emitInstructionL(RETURN_ROUTINE);
+        writeReturnCode();
+
+    }
+
     /**
      * Writes the assembly code that is the translation of
      * the given arithmetic command.
@@ -200,69 +694,78 @@ public class CodeWriter {
      */
     public void writeArithmetic(String command) {
 
+        if(mProfile != null && (command.equals("eq") || command.equals("gt") || command.equals("lt"))) {
+            mProfile.addComparison();
+        }
+
+        if(mCacheStackTop) {
+            writeArithmeticCached(command);
+            return;
+        }
+
         switch(command) {
 
             case "add" :
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M","");
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // M[SP]=M[SP]+D
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=D+M");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","D+M","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 break;
 
             case "sub" :
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M","");
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // M[SP]=M[SP]-D
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=M-D");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","M-D","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 break;
 
             case "neg" :
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // M[SP]=-M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=-M");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","-M","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 break;
 
@@ -272,73 +775,78 @@ public class CodeWriter {
             // instructions in the output code. Remember each assembly
             // instructions consumes one clock cycle.
 
-            // The jump mechanism currently uses a copy of the same code
-            // to push true and false values on the stack. This can be changed
-            // to use a call command to call a function to push the same.
+            // The jump mechanism uses a copy of the same code to push
+            // true and false values on the stack, unless shared
+            // comparison routines are used (see setSharedComparisons).
 
             case "eq" :
 
+                if(mSharedComparisons) {
+                    writeSharedComparison(EQ_ROUTINE);
+                    break;
+                }
+
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M","");
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]-D
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M-D");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M-D","");
 
 
                 // if D==0, M[SP] = 0xFFFF (true)
-                mOutputFile.println("@PUSH_TRUE_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("D;JEQ");
+                emitInstructionA(uniqueLabel("PUSH_TRUE", mComparisonCommandCount));
+                emitInstructionC("","D","JEQ");
 
                 // otherwise, M[SP] = 0x0 (false)
-                mOutputFile.println("@PUSH_FALSE_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0;JMP");
+                emitInstructionA(uniqueLabel("PUSH_FALSE", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
 
                 // label (PUSH_TRUE_ + <LOGICAL_COMMAND_COUNT>)
                 // makes M[SP] = 0xFFFF, increments SP and leaves
                 // leave label = LEAVE_COMPARISON_COMMAND_ + <COMPARISON_COMMAND_COUNT>
-                mOutputFile.println("(PUSH_TRUE_" + Integer.toString(mComparisonCommandCount) + ")");
-                mOutputFile.println("@SP");
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=-1");
+                emitInstructionL(uniqueLabel("PUSH_TRUE", mComparisonCommandCount));
+                emitInstructionA("SP");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","-1","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 // leave
-                mOutputFile.println("@LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0;JMP");
+                emitInstructionA(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
                 // label (PUSH_FALSE_ + <LOGICAL_COMMAND_COUNT>)
                 // makes M[SP] = 0x0, increments SP and leaves
                 // leave label = LEAVE_COMPARISON_COMMAND_ + <COMPARISON_COMMAND_COUNT>
-                mOutputFile.println("(PUSH_FALSE_" + Integer.toString(mComparisonCommandCount) + ")");
-                mOutputFile.println("@SP");
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=0");
+                emitInstructionL(uniqueLabel("PUSH_FALSE", mComparisonCommandCount));
+                emitInstructionA("SP");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","0","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 // leave
-                mOutputFile.println("@LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0;JMP");
+                emitInstructionA(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
 
                 // leave label
-                mOutputFile.println("(LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount) + ")");
+                emitInstructionL(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
 
                 mComparisonCommandCount = mComparisonCommandCount + 1;
 
@@ -346,64 +854,69 @@ public class CodeWriter {
 
             case "gt" :
 
+                if(mSharedComparisons) {
+                    writeSharedComparison(GT_ROUTINE);
+                    break;
+                }
+
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M","");
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]-D
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M-D");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M-D","");
 
                 // if D>0, M[SP] = 0xFFFF (true)
-                mOutputFile.println("@PUSH_TRUE_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("D;JGT");
+                emitInstructionA(uniqueLabel("PUSH_TRUE", mComparisonCommandCount));
+                emitInstructionC("","D","JGT");
 
                 // otherwise, M[SP] = 0x0 (false)
-                mOutputFile.println("@PUSH_FALSE_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0,JMP");
+                emitInstructionA(uniqueLabel("PUSH_FALSE", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
                 // label (PUSH_TRUE_ + <COMPARISON_COMMAND_COUNT>)
                 // makes M[SP] = 0xFFFF, increments SP and leaves
                 // leave label = LEAVE_COMPARISON_COMMAND_ + <COMPARISON_COMMAND_COUNT>
-                mOutputFile.println("(PUSH_TRUE_" + Integer.toString(mComparisonCommandCount) + ")");
-                mOutputFile.println("@SP");
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=-1");
+                emitInstructionL(uniqueLabel("PUSH_TRUE", mComparisonCommandCount));
+                emitInstructionA("SP");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","-1","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 // leave
-                mOutputFile.println("@LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0;JMP");
+                emitInstructionA(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
                 // label (PUSH_FALSE_ + <LOGICAL_COMMAND_COUNT>)
                 // makes M[SP] = 0x0, increments SP and leaves
                 // leave label = LEAVE_COMPARISON_COMMAND_ + <COMPARISON_COMMAND_COUNT>
-                mOutputFile.println("(PUSH_FALSE_" + Integer.toString(mComparisonCommandCount) + ")");
-                mOutputFile.println("@SP");
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=0");
+                emitInstructionL(uniqueLabel("PUSH_FALSE", mComparisonCommandCount));
+                emitInstructionA("SP");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","0","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 // leave
-                mOutputFile.println("@LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0;JMP");
+                emitInstructionA(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
                 
                 // leave label
-                mOutputFile.println("(LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount) + ")");
+                emitInstructionL(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
 
                 mComparisonCommandCount = mComparisonCommandCount + 1;
 
@@ -411,64 +924,69 @@ public class CodeWriter {
 
             case "lt" :
 
+                if(mSharedComparisons) {
+                    writeSharedComparison(LT_ROUTINE);
+                    break;
+                }
+
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M","");
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]-D
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M-D");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M-D","");
 
                 // if D<0, M[SP] = 0xFFFF (true)
-                mOutputFile.println("@PUSH_TRUE_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("D;JLT");
+                emitInstructionA(uniqueLabel("PUSH_TRUE", mComparisonCommandCount));
+                emitInstructionC("","D","JLT");
 
                 // otherwise, M[SP] = 0x0 (false)
-                mOutputFile.println("@PUSH_FALSE_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0,JMP");
+                emitInstructionA(uniqueLabel("PUSH_FALSE", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
                 // label (PUSH_TRUE_ + <COMPARISON_COMMAND_COUNT>)
                 // makes M[SP] = 0xFFFF, increments SP and leaves
                 // leave label = LEAVE_COMPARISON_COMMAND_ + <COMPARISON_COMMAND_COUNT>
-                mOutputFile.println("(PUSH_TRUE_" + Integer.toString(mComparisonCommandCount) + ")");
-                mOutputFile.println("@SP");
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=-1");
+                emitInstructionL(uniqueLabel("PUSH_TRUE", mComparisonCommandCount));
+                emitInstructionA("SP");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","-1","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 // leave
-                mOutputFile.println("@LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0;JMP");
+                emitInstructionA(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
                 // label (PUSH_FALSE_ + <LOGICAL_COMMAND_COUNT>)
                 // makes M[SP] = 0x0, increments SP and leaves
                 // leave label = LEAVE_COMPARISON_COMMAND_ + <COMPARISON_COMMAND_COUNT>
-                mOutputFile.println("(PUSH_FALSE_" + Integer.toString(mComparisonCommandCount) + ")");
-                mOutputFile.println("@SP");
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=0");
+                emitInstructionL(uniqueLabel("PUSH_FALSE", mComparisonCommandCount));
+                emitInstructionA("SP");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","0","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 // leave
-                mOutputFile.println("@LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount));
-                mOutputFile.println("0;JMP");
+                emitInstructionA(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
+                emitInstructionC("","0","JMP");
 
                 // leave label
-                mOutputFile.println("(LEAVE_COMPARISON_COMMAND_" + Integer.toString(mComparisonCommandCount) + ")");
+                emitInstructionL(uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount));
 
                 mComparisonCommandCount = mComparisonCommandCount + 1;
 
@@ -477,71 +995,69 @@ public class CodeWriter {
             case "and" :
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M","");
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // M[SP]= D&M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=D&M");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","D&M","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 break;
 
             case "or" :
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // D=M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("D=M");
+                emitInstructionC("A","M","");
+                emitInstructionC("D","M","");
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // M[SP]= D|M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=D|M");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","D|M","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 break;
 
             case "not" :
 
                 // SP=SP-1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M-1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M-1","");
 
                 // M[SP]=!M[SP]
-                mOutputFile.println("A=M");
-                mOutputFile.println("M=!M");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","!M","");
 
                 // SP=SP+1
-                mOutputFile.println("@SP");
-                mOutputFile.println("M=M+1");
+                emitInstructionA("SP");
+                emitInstructionC("M","M+1","");
 
                 break;
 
         }
 
-        mOutputFile.flush();
-
     }
 
     /**
@@ -555,377 +1071,352 @@ public class CodeWriter {
      */
     public void writePushPop(CommandTypeVM commandTypeVM, String segment, int index) {
 
-        switch (commandTypeVM) {
-
-            case C_PUSH:
-
-                switch (segment) {
-
-                    case "constant" :
-
-                        // M[SP]=index
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("D=A");
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
-
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
-
-                        break;
-
-                    case "local" :
-
-                        // D=M[LCL+index]
-                        mOutputFile.println("@LCL");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("A=D+A");
-                        mOutputFile.println("D=M");
-
-                        // M[SP]=D
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
-
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
-
-                        break;
-
-                    case "argument" :
-
-                        // D=M[ARG+index]
-                        mOutputFile.println("@ARG");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("A=D+A");
-                        mOutputFile.println("D=M");
-
-                        // M[SP]=D
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
-
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
-
-                        break;
-
-                    case "this" :
-
-                        // D=M[THIS+index]
-                        mOutputFile.println("@THIS");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("A=D+A");
-                        mOutputFile.println("D=M");
-
-                        // M[SP]=D
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
-
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
+        if(commandTypeVM == CommandTypeVM.C_PUSH) {
+            writePush(segment, index);
+        } else {
+            writePop(segment, index);
+        }
 
-                        break;
+    }
 
-                    case "that" :
+    /**
+     * Stores the top of the stack to memory if it is in D
+     */
+    private void spillStackTop() {
 
-                        // D=M[THAT+index]
-                        mOutputFile.println("@THAT");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("A=D+A");
-                        mOutputFile.println("D=M");
+        if(!mStackTopInD) {
+            return;
+        }
 
-                        // M[SP]=D
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
+        // SP=SP+1, M[SP-1]=D
+        emitInstructionA("SP");
+        emitInstructionC("AM","M+1","");
+        emitInstructionC("A","A-1","");
+        emitInstructionC("M","D","");
 
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
+        mStackTopInD = false;
+    }
 
-                        break;
+    /**
+     * Pops the top of the stack into D if it is not there already.
+     * It is still at M[SP] afterwards.
+     */
+    private void loadStackTop() {
 
-                    case "pointer" :
+        if(mStackTopInD) {
+            return;
+        }
 
-                        // D=M[3+index]
-                        mOutputFile.println("@R3");
-                        mOutputFile.println("D=A");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("A=D+A"); // A=3+index
-                        mOutputFile.println("D=M");
+        // SP=SP-1, D=M[SP]
+        emitInstructionA("SP");
+        emitInstructionC("AM","M-1","");
+        emitInstructionC("D","M","");
 
-                        // M[SP]=D
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
+        mStackTopInD = true;
+    }
 
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
+    /**
+     * Returns the pointer to the base of a segment
+     * or null if the segment is not reached through one
+     */
+    private static String segmentPointer(String segment) {
 
-                        break;
+        switch (segment) {
 
-                    case "temp" :
+            case "local" :
+                return "LCL";
 
-                        // D=M[5+index]
-                        mOutputFile.println("@R5");
-                        mOutputFile.println("D=A");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("A=D+A"); // A=5+index
-                        mOutputFile.println("D=M");
+            case "argument" :
+                return "ARG";
 
-                        // M[SP]=D
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
+            case "this" :
+                return "THIS";
 
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
+            case "that" :
+                return "THAT";
 
-                        break;
+            default:
+                return null;
+        }
+    }
 
-                    case "static" :
+    /**
+     * Returns the symbol for the address of a static, pointer
+     * or temp segment entry, whose address is fixed
+     */
+    private String fixedAddress(String segment, int index) {
 
-                        // D=M[filename.index]
-                        mOutputFile.println("@" + mCurrentFileName + "." + Integer.toString(index));
-                        mOutputFile.println("D=M");
+        switch (segment) {
 
-                        // M[SP]=D
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("M=D");
+            case "pointer" :
+                return "R" + Integer.toString(3 + index);
 
-                        // SP=SP+1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M+1");
+            case "temp" :
+                return "R" + Integer.toString(5 + index);
 
-                        break;
+            default:
+                return mCurrentFileName + "." + Integer.toString(index);
+        }
+    }
 
-                }
+    /**
+     * Writes A=M[pointer]+index without changing D, as
+     * A=M+1 followed by A=A+1 as many times as needed
+     */
+    private void emitIndexChain(String pointer, int index) {
 
-                break;
+        emitInstructionA(pointer);
+        emitInstructionC("A", index == 0 ? "M" : "M+1", "");
 
-            case C_POP:
+        for (int i=1;i<index;i++) {
+            emitInstructionC("A","A+1","");
+        }
 
-                switch (segment) {
+    }
 
-                    case "local" :
+    /**
+     * Pops the top of the stack into D
+     */
+    private void popToD() {
 
-                        // D=LCL+index
-                        mOutputFile.println("@LCL");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("D=D+A");
+        loadStackTop();
+        mStackTopInD = false;
+    }
 
-                        // R13=D
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("M=D");
+    /**
+     * Pushes D on to the stack
+     */
+    private void pushD() {
 
-                        // SP=SP-1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M-1");
+        if(mCacheStackTop) {
+            mStackTopInD = true;
+            return;
+        }
 
-                        // D=M[SP]
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("D=M");
+        // SP=SP+1, M[SP-1]=D
+        emitInstructionA("SP");
+        emitInstructionC("AM","M+1","");
+        emitInstructionC("A","A-1","");
+        emitInstructionC("M","D","");
+    }
 
-                        // A=R13
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("A=M");
+    /**
+     * Writes assembly code that pushes a constant. 0, 1 and -1 (the
+     * Jack true) are written to the stack without going through D.
+     *
+     * @param value the constant, -1 or from 0 to 32767
+     */
+    public void writePushConstant(int value) {
 
-                        // M[LCL+index]=D
-                        mOutputFile.println("M=D");
+        spillStackTop();
 
-                        break;
+        if(value >= -1 && value <= 1) {
 
-                    case "argument" :
+            if(mCacheStackTop) {
+                emitInstructionC("D",Integer.toString(value),"");
+                mStackTopInD = true;
+                return;
+            }
 
-                        // D=ARG+index
-                        mOutputFile.println("@ARG");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("D=D+A");
+            // SP=SP+1, M[SP-1]=value
+            emitInstructionA("SP");
+            emitInstructionC("AM","M+1","");
+            emitInstructionC("A","A-1","");
+            emitInstructionC("M",Integer.toString(value),"");
 
-                        // R13=D
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("M=D");
+            return;
+        }
 
-                        // SP=SP-1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M-1");
+        // D=value
+        emitInstructionA(Integer.toString(value));
+        emitInstructionC("D","A","");
 
-                        // D=M[SP]
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("D=M");
+        pushD();
+    }
 
-                        // A=R13
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("A=M");
+    /**
+     * Writes a push command
+     */
+    private void writePush(String segment, int index) {
 
-                        // M[ARG+index]=D
-                        mOutputFile.println("M=D");
+        if(segment.equals("constant")) {
+            writePushConstant(index);
+            return;
+        }
 
-                        break;
+        spillStackTop();
 
-                    case "this" :
+        String pointer = segmentPointer(segment);
 
-                        // D=THIS+index
-                        mOutputFile.println("@THIS");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("D=D+A");
+        if(pointer == null) {
 
-                        // R13=D
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("M=D");
+            // D=M[address]
+            emitInstructionA(fixedAddress(segment, index));
+            emitInstructionC("D","M","");
 
-                        // SP=SP-1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M-1");
+        } else {
 
-                        // D=M[SP]
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("D=M");
+            // A=M[pointer]+index
+            if(index <= INDEX_CHAIN_LIMIT) {
+                emitIndexChain(pointer, index);
+            } else {
+                emitInstructionA(pointer);
+                emitInstructionC("D","M","");
+                emitInstructionA(Integer.toString(index));
+                emitInstructionC("A","D+A","");
+            }
 
-                        // A=R13
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("A=M");
+            // D=M[A]
+            emitInstructionC("D","M","");
+        }
 
-                        // M[THIS+index]=D
-                        mOutputFile.println("M=D");
+        pushD();
+    }
 
-                        break;
+    /**
+     * Writes a pop command
+     */
+    private void writePop(String segment, int index) {
 
-                    case "that" :
+        // The popped value stays at M[SP] too, unless it was only in D
+        boolean inMemory = !mStackTopInD;
 
-                        // D=THAT+index
-                        mOutputFile.println("@THAT");
-                        mOutputFile.println("D=M");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("D=D+A");
+        // D=top of the stack, popped
+        popToD();
 
-                        // R13=D
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("M=D");
+        String pointer = segmentPointer(segment);
 
-                        // SP=SP-1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M-1");
+        if(pointer == null) {
 
-                        // D=M[SP]
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("D=M");
+            // M[address]=D
+            emitInstructionA(fixedAddress(segment, index));
+            emitInstructionC("M","D","");
 
-                        // A=R13
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("A=M");
+        } else if(index <= 2 * INDEX_CHAIN_LIMIT) {
 
-                        // M[THAT+index]=D
-                        mOutputFile.println("M=D");
+            // M[M[pointer]+index]=D
+            emitIndexChain(pointer, index);
+            emitInstructionC("M","D","");
 
-                        break;
+        } else {
 
-                    case "pointer" :
+            // M[SP]=D, the popped value
+            if(!inMemory) {
+                emitInstructionA("SP");
+                emitInstructionC("A","M","");
+                emitInstructionC("M","D","");
+            }
 
-                        // D=3+index
-                        mOutputFile.println("@R3");
-                        mOutputFile.println("D=A");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("D=D+A");
+            // D=D+address
+            emitInstructionA(pointer);
+            emitInstructionC("D","D+M","");
+            emitInstructionA(Integer.toString(index));
+            emitInstructionC("D","D+A","");
 
-                        // R13=D
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("M=D");
+            // A=D-value=address, M=D-address=value
+            emitInstructionA("SP");
+            emitInstructionC("A","M","");
+            emitInstructionC("A","D-M","");
+            emitInstructionC("M","D-A","");
+        }
 
-                        // SP=SP-1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M-1");
+    }
 
-                        // D=M[SP]
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("D=M");
+    /**
+     * Writes an arithmetic or logical command with the
+     * top of the stack kept in D
+     */
+    private void writeArithmeticCached(String command) {
 
-                        // A=R13
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("A=M");
+        switch (command) {
 
-                        // M[3+index]=D
-                        mOutputFile.println("M=D");
+            case "add" :
+            case "sub" :
+            case "and" :
+            case "or" :
 
-                        break;
+                // D=y
+                loadStackTop();
+
+                // SP=SP-1, M=x
+                emitInstructionA("SP");
+                emitInstructionC("AM","M-1","");
+
+                if(command.equals("add")) {
+                    emitInstructionC("D","D+M","");
+                } else if(command.equals("sub")) {
+                    emitInstructionC("D","M-D","");
+                } else if(command.equals("and")) {
+                    emitInstructionC("D","D&M","");
+                } else {
+                    emitInstructionC("D","D|M","");
+                }
 
-                    case "temp" :
+                break;
 
-                        // D=5+index
-                        mOutputFile.println("@R5");
-                        mOutputFile.println("D=A");
-                        mOutputFile.println("@"+Integer.toString(index));
-                        mOutputFile.println("D=D+A");
+            case "neg" :
+            case "not" :
 
-                        // R13=D
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("M=D");
+                String operator = command.equals("neg") ? "-" : "!";
 
-                        // SP=SP-1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M-1");
+                if(mStackTopInD) {
+                    emitInstructionC("D",operator + "D","");
+                } else {
+                    // negate in place
+                    emitInstructionA("SP");
+                    emitInstructionC("A","M-1","");
+                    emitInstructionC("M",operator + "M","");
+                }
 
-                        // D=M[SP]
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("D=M");
+                break;
 
-                        // A=R13
-                        mOutputFile.println("@R13");
-                        mOutputFile.println("A=M");
+            case "eq" :
+            case "gt" :
+            case "lt" :
 
-                        // M[5+index]=D
-                        mOutputFile.println("M=D");
+                if(mSharedComparisons) {
 
-                        break;
+                    // the routines work on the stack in memory
+                    spillStackTop();
 
-                    case "static" :
+                    String routine = command.equals("eq") ? EQ_ROUTINE : command.equals("gt") ? GT_ROUTINE : LT_ROUTINE;
+                    writeSharedComparison(routine);
 
-                        // SP=SP-1
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("M=M-1");
+                    break;
+                }
 
-                        // D=M[SP]
-                        mOutputFile.println("@SP");
-                        mOutputFile.println("A=M");
-                        mOutputFile.println("D=M");
+                String jump = "J" + command.toUpperCase();
+                String trueLabel = uniqueLabel("PUSH_TRUE", mComparisonCommandCount);
+                String leaveLabel = uniqueLabel("LEAVE_COMPARISON_COMMAND", mComparisonCommandCount);
+
+                // D=y
+                loadStackTop();
+
+                // SP=SP-1, D=x-y
+                emitInstructionA("SP");
+                emitInstructionC("AM","M-1","");
+                emitInstructionC("D","M-D","");
+
+                // D=true or false. Only this command jumps to these
+                // labels, so D can hold the top of the stack across them.
+                emitInstructionA(trueLabel);
+                emitInstructionC("","D",jump);
+                emitInstructionC("D","0","");
+                emitInstructionA(leaveLabel);
+                emitInstructionC("","0","JMP");
+                emitInstructionL(trueLabel);
+                emitInstructionC("D","-1","");
+                emitInstructionL(leaveLabel);
 
-                        // M[filename.index]=D
-                        mOutputFile.println("@" + mCurrentFileName + "." + Integer.toString(index));
-                        mOutputFile.println("M=D");
+                mComparisonCommandCount = mComparisonCommandCount + 1;
 
-                        break;
+                break;
 
-                }
+            default:
 
                 break;
-
         }
 
-        mOutputFile.flush();
-
     }
 
     /**
@@ -939,108 +1430,152 @@ public class CodeWriter {
      */
     public void writeCall(String functionName, int numArgs) {
 
+        if(mProfile != null) {
+            mProfile.addCallSite();
+        }
+
+        spillStackTop();
+
         // 1. push return address to stack
-        String returnLabel = "RETURN_" + functionName + "_" + Integer.toString(mFunctionCallCount);
+        String returnLabel = uniqueLabel("RETURN_" + functionName, mFunctionCallCount);
+
+        if(mSharedCallReturn) {
+            writeSharedCall(functionName, numArgs, returnLabel);
+            return;
+        }
 
         // D=return address
-        mOutputFile.println("@"+ returnLabel);
-        mOutputFile.println("D=A");
+        emitInstructionA(returnLabel);
+        emitInstructionC("D","A","");
 
         // M[SP]=D
-        mOutputFile.println("@SP");
-        mOutputFile.println("A=M");
-        mOutputFile.println("M=D");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
 
         // SP=SP+1
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=M+1");
+        emitInstructionA("SP");
+        emitInstructionC("M","M+1","");
 
         // 2. push LCL
-        mOutputFile.println("@LCL");
-        mOutputFile.println("D=M");
+        emitInstructionA("LCL");
+        emitInstructionC("D","M","");
 
         // M[SP]=D
-        mOutputFile.println("@SP");
-        mOutputFile.println("A=M");
-        mOutputFile.println("M=D");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
 
         // SP=SP+1
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=M+1");
+        emitInstructionA("SP");
+        emitInstructionC("M","M+1","");
 
         // 3. push ARG
-        mOutputFile.println("@ARG");
-        mOutputFile.println("D=M");
+        emitInstructionA("ARG");
+        emitInstructionC("D","M","");
 
         // M[SP]=D
-        mOutputFile.println("@SP");
-        mOutputFile.println("A=M");
-        mOutputFile.println("M=D");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
 
         // SP=SP+1
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=M+1");
+        emitInstructionA("SP");
+        emitInstructionC("M","M+1","");
 
         // 4. push THIS
-        mOutputFile.println("@THIS");
-        mOutputFile.println("D=M");
+        emitInstructionA("THIS");
+        emitInstructionC("D","M","");
 
         // M[SP]=D
-        mOutputFile.println("@SP");
-        mOutputFile.println("A=M");
-        mOutputFile.println("M=D");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
 
         // SP=SP+1
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=M+1");
+        emitInstructionA("SP");
+        emitInstructionC("M","M+1","");
 
         // 5. push THAT
-        mOutputFile.println("@THAT");
-        mOutputFile.println("D=M");
+        emitInstructionA("THAT");
+        emitInstructionC("D","M","");
 
         // M[SP]=D
-        mOutputFile.println("@SP");
-        mOutputFile.println("A=M");
-        mOutputFile.println("M=D");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
 
         // SP=SP+1
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=M+1");
+        emitInstructionA("SP");
+        emitInstructionC("M","M+1","");
 
         // 6. ARG=SP-numArgs-5
 
         // D=numArgs+5
-        mOutputFile.println("@" + Integer.toString(numArgs+5));
-        mOutputFile.println("D=A");
+        emitInstructionA(Integer.toString(numArgs+5));
+        emitInstructionC("D","A","");
 
         // D=SP-(numArgs+5)
-        mOutputFile.println("@SP");
-        mOutputFile.println("D=M-D");
+        emitInstructionA("SP");
+        emitInstructionC("D","M-D","");
 
         // ARG=D
-        mOutputFile.println("@ARG");
-        mOutputFile.println("M=D");
+        emitInstructionA("ARG");
+        emitInstructionC("M","D","");
 
         // 7. LCL=SP
 
         // D=SP
-        mOutputFile.println("@SP");
-        mOutputFile.println("D=M");
+        emitInstructionA("SP");
+        emitInstructionC("D","M","");
 
         // LCL=D
-        mOutputFile.println("@LCL");
-        mOutputFile.println("M=D");
+        emitInstructionA("LCL");
+        emitInstructionC("M","D","");
 
         // 8. transfer control to function
-        mOutputFile.println("@" + functionName);
-        mOutputFile.println("0;JMP");
+        emitInstructionA(functionName);
+        emitInstructionC("","0","JMP");
 
         // 9. return label
-        mOutputFile.println("(" + returnLabel + ")");
+        emitInstructionL(returnLabel);
 
         mFunctionCallCount = mFunctionCallCount + 1;
+    }
+
+    /**
+     * Writes a call that jumps to the shared call routine
+     *
+     * @param functionName the name of the function to call
+     * @param numArgs      the number of arguments the function takes
+     * @param returnLabel  the label to return to
+     */
+    private void writeSharedCall(String functionName, int numArgs, String returnLabel) {
+
+        // R15=return address
+        emitInstructionA(returnLabel);
+        emitInstructionC("D","A","");
+        emitInstructionA("R15");
+        emitInstructionC("M","D","");
+
+        // R14=numArgs
+        emitInstructionA(Integer.toString(numArgs));
+        emitInstructionC("D","A","");
+        emitInstructionA("R14");
+        emitInstructionC("M","D","");
+
+        // R13=function
+        emitInstructionA(functionName);
+        emitInstructionC("D","A","");
+        emitInstructionA("R13");
+        emitInstructionC("M","D","");
 
-        mOutputFile.flush();
+        emitInstructionA(CALL_ROUTINE);
+        emitInstructionC("","0","JMP");
+
+        emitInstructionL(returnLabel);
+
+        mFunctionCallCount = mFunctionCallCount + 1;
     }
 
     /**
@@ -1053,8 +1588,17 @@ public class CodeWriter {
      */
     public void writeFunction(String functionName,int numLocals) {
 
-        mOutputFile.println("(" + functionName + ")");
-        mOutputFile.flush();
+        spillStackTop();
+
+        if(mProfile != null) {
+            mProfile.beginFunction(functionName);
+        }
+
+        if(mCommandMap != null) {
+            mCommandMap.beginFunction(functionName);
+        }
+
+        emitInstructionL(functionName);
 
         for (int i=0;i<numLocals;i++) {
             writePushPop(CommandTypeVM.C_PUSH,"constant",0);
@@ -1067,93 +1611,108 @@ public class CodeWriter {
      */
     public void writeReturn() {
 
+        spillStackTop();
+
+        if(mSharedCallReturn) {
+            emitInstructionA(RETURN_ROUTINE);
+            emitInstructionC("","0","JMP");
+        }
+        else {
+            writeReturnCode();
+        }
+
+    }
+
+    /**
+     * Writes the code of a return command in full
+     */
+    private void writeReturnCode() {
+
         // R13=M[LCL-5] (return address)
-        mOutputFile.println("@5");
-        mOutputFile.println("D=A");
-        mOutputFile.println("@LCL");
-        mOutputFile.println("A=M-D");
-        mOutputFile.println("D=M");
-        mOutputFile.println("@R13");
-        mOutputFile.println("M=D");
+        emitInstructionA("5");
+        emitInstructionC("D","A","");
+        emitInstructionA("LCL");
+        emitInstructionC("A","M-D","");
+        emitInstructionC("D","M","");
+        emitInstructionA("R13");
+        emitInstructionC("M","D","");
 
         // push return value to stack
 
         // SP=SP-1
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=M-1");
+        emitInstructionA("SP");
+        emitInstructionC("M","M-1","");
 
         // D=M[SP]
-        mOutputFile.println("@SP");
-        mOutputFile.println("A=M");
-        mOutputFile.println("D=M");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("D","M","");
 
         // M[ARG]=D
-        mOutputFile.println("@ARG");
-        mOutputFile.println("A=M");
-        mOutputFile.println("M=D");
+        emitInstructionA("ARG");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
 
         // SP=ARG+1
-        mOutputFile.println("@ARG");
-        mOutputFile.println("D=M+1");
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=D");
+        emitInstructionA("ARG");
+        emitInstructionC("D","M+1","");
+        emitInstructionA("SP");
+        emitInstructionC("M","D","");
 
         // restore THAT,THIS,ARG,LCL
 
         // LCL=LCL-1
-        mOutputFile.println("@LCL");
-        mOutputFile.println("M=M-1");
+        emitInstructionA("LCL");
+        emitInstructionC("M","M-1","");
 
         // THAT = M[LCL]
-        mOutputFile.println("@LCL");
-        mOutputFile.println("A=M");
-        mOutputFile.println("D=M");
+        emitInstructionA("LCL");
+        emitInstructionC("A","M","");
+        emitInstructionC("D","M","");
 
-        mOutputFile.println("@THAT");
-        mOutputFile.println("M=D");
+        emitInstructionA("THAT");
+        emitInstructionC("M","D","");
 
         // LCL=LCL-1
-        mOutputFile.println("@LCL");
-        mOutputFile.println("M=M-1");
+        emitInstructionA("LCL");
+        emitInstructionC("M","M-1","");
 
         // THIS = M[LCL]
-        mOutputFile.println("@LCL");
-        mOutputFile.println("A=M");
-        mOutputFile.println("D=M");
+        emitInstructionA("LCL");
+        emitInstructionC("A","M","");
+        emitInstructionC("D","M","");
 
-        mOutputFile.println("@THIS");
-        mOutputFile.println("M=D");
+        emitInstructionA("THIS");
+        emitInstructionC("M","D","");
 
         // LCL=LCL-1
-        mOutputFile.println("@LCL");
-        mOutputFile.println("M=M-1");
+        emitInstructionA("LCL");
+        emitInstructionC("M","M-1","");
 
         // ARG = M[LCL]
-        mOutputFile.println("@LCL");
-        mOutputFile.println("A=M");
-        mOutputFile.println("D=M");
+        emitInstructionA("LCL");
+        emitInstructionC("A","M","");
+        emitInstructionC("D","M","");
 
-        mOutputFile.println("@ARG");
-        mOutputFile.println("M=D");
+        emitInstructionA("ARG");
+        emitInstructionC("M","D","");
 
         // LCL=LCL-1
-        mOutputFile.println("@LCL");
-        mOutputFile.println("M=M-1");
+        emitInstructionA("LCL");
+        emitInstructionC("M","M-1","");
 
         // LCL=M[LCL]
-        mOutputFile.println("@LCL");
-        mOutputFile.println("A=M");
-        mOutputFile.println("D=M");
+        emitInstructionA("LCL");
+        emitInstructionC("A","M","");
+        emitInstructionC("D","M","");
 
-        mOutputFile.println("@LCL");
-        mOutputFile.println("M=D");
+        emitInstructionA("LCL");
+        emitInstructionC("M","D","");
 
         // jump to R13
-        mOutputFile.println("@R13");
-        mOutputFile.println("A=M");
-        mOutputFile.println("0;JMP");
-
-        mOutputFile.flush();
+        emitInstructionA("R13");
+        emitInstructionC("A","M","");
+        emitInstructionC("","0","JMP");
     }
 
     /**
@@ -1165,10 +1724,11 @@ public class CodeWriter {
      */
     public void writeLabel(String label) {
 
+        spillStackTop();
+
         String labelQualifiedWithFunctionName = mCurrentFunctionName + "$" + label;
 
-        mOutputFile.println("(" + labelQualifiedWithFunctionName + ")");
-        mOutputFile.flush();
+        emitInstructionL(labelQualifiedWithFunctionName);
 
     }
 
@@ -1181,12 +1741,12 @@ public class CodeWriter {
      */
     public void writeGoto(String label) {
 
-        String labelQualifiedWithFunctionName = mCurrentFunctionName + "$" + label;
+        spillStackTop();
 
-        mOutputFile.println("@"+labelQualifiedWithFunctionName);
-        mOutputFile.println("0;JMP");
+        String labelQualifiedWithFunctionName = mCurrentFunctionName + "$" + label;
 
-        mOutputFile.flush();
+        emitInstructionA(labelQualifiedWithFunctionName);
+        emitInstructionC("","0","JMP");
     }
 
     /**
@@ -1200,31 +1760,428 @@ public class CodeWriter {
 
         String labelQualifiedWithFunctionName = mCurrentFunctionName + "$" + label;
 
+        if(mCacheStackTop) {
+
+            // D=top of the stack, popped
+            popToD();
+
+            // if D != 0, jump to label
+            emitInstructionA(labelQualifiedWithFunctionName);
+            emitInstructionC("","D","JNE");
+
+            return;
+        }
+
         // SP=SP-1
-        mOutputFile.println("@SP");
-        mOutputFile.println("M=M-1");
+        emitInstructionA("SP");
+        emitInstructionC("M","M-1","");
 
         // D=M[SP]
-        mOutputFile.println("@SP");
-        mOutputFile.println("A=M");
-        mOutputFile.println("D=M");
+        emitInstructionA("SP");
+        emitInstructionC("A","M","");
+        emitInstructionC("D","M","");
 
         // if D != 0, jump to label
-        mOutputFile.println("@" + labelQualifiedWithFunctionName);
-        mOutputFile.println("D;JNE");
+        emitInstructionA(labelQualifiedWithFunctionName);
+        emitInstructionC("","D","JNE");
+
+    }
+
+    /**
+     * Writes assembly code that effects push s i, push constant c,
+     * add (or sub), pop s i. The entry is changed in place and
+     * the stack is not touched.
+     *
+     * @param segment  the segment s, not constant
+     * @param index    the index i
+     * @param command  add or sub
+     * @param constant the constant c
+     */
+    public void writeIncrement(String segment, int index, String command, int constant) {
+
+        String pointer = segmentPointer(segment);
+        boolean farIndex = pointer != null && index > 2 * INDEX_CHAIN_LIMIT;
+
+        // D is needed for the constant or the address
+        if(constant != 1 || farIndex) {
+            spillStackTop();
+        }
+
+        if(farIndex) {
+
+            // R13=M[pointer]+index
+            emitInstructionA(pointer);
+            emitInstructionC("D","M","");
+            emitInstructionA(Integer.toString(index));
+            emitInstructionC("D","D+A","");
+            emitInstructionA("R13");
+            emitInstructionC("M","D","");
+
+            pointer = "R13";
+            index = 0;
+        }
+
+        String comp;
+
+        if(constant == 1) {
+            comp = command.equals("add") ? "M+1" : "M-1";
+        } else {
+
+            // D=c
+            emitInstructionA(Integer.toString(constant));
+            emitInstructionC("D","A","");
+
+            comp = command.equals("add") ? "D+M" : "M-D";
+        }
+
+        // A=address of the entry
+        if(pointer == null) {
+            emitInstructionA(fixedAddress(segment, index));
+        } else {
+            emitIndexChain(pointer, index);
+        }
+
+        emitInstructionC("M",comp,"");
+    }
+
+    /**
+     * Writes assembly code that effects a comparison command followed by
+     * if-goto, without pushing the result of the comparison.
+     *
+     * @param comparison eq, gt or lt
+     * @param withZero   true if the comparison is with a
+     *                   constant 0 pushed just before it
+     * @param jumpIfTrue true to jump if the comparison holds,
+     *                   false to jump if it does not
+     * @param label      the label to jump to
+     */
+    public void writeComparisonJump(String comparison, boolean withZero, boolean jumpIfTrue, String label) {
+
+        if(mProfile != null) {
+            mProfile.addComparison();
+        }
+
+        String labelQualifiedWithFunctionName = mCurrentFunctionName + "$" + label;
+
+        // D=y, or x when comparing with 0
+        popToD();
+
+        if(!withZero) {
+
+            // SP=SP-1, D=x-y
+            emitInstructionA("SP");
+            emitInstructionC("AM","M-1","");
+            emitInstructionC("D","M-D","");
+        }
+
+        String jump;
+
+        switch (comparison) {
 
-        mOutputFile.flush();
+            case "eq" :
+                jump = jumpIfTrue ? "JEQ" : "JNE";
+                break;
+
+            case "gt" :
+                jump = jumpIfTrue ? "JGT" : "JLE";
+                break;
+
+            default:
+                jump = jumpIfTrue ? "JLT" : "JGE";
+                break;
+        }
+
+        emitInstructionA(labelQualifiedWithFunctionName);
+        emitInstructionC("","D",jump);
+    }
+
+    /**
+     * Writes assembly code that jumps to a label if the top of the
+     * stack, popped, is 0. It is the opposite of if-goto.
+     *
+     * @param label the label to jump to
+     */
+    public void writeIfZero(String label) {
+
+        String labelQualifiedWithFunctionName = mCurrentFunctionName + "$" + label;
+
+        // D=top of the stack, popped
+        popToD();
+
+        // if D == 0 jump to label
+        emitInstructionA(labelQualifiedWithFunctionName);
+        emitInstructionC("","D","JEQ");
+    }
+
+    /**
+     * Writes assembly code that effects not followed by if-goto
+     *
+     * @param label the label to jump to
+     */
+    public void writeIfNot(String label) {
+
+        String labelQualifiedWithFunctionName = mCurrentFunctionName + "$" + label;
+
+        // D=top of the stack, popped
+        popToD();
+
+        // if !D != 0, that is D != -1, jump to label
+        emitInstructionA(labelQualifiedWithFunctionName);
+        emitInstructionC("","D+1","JNE");
+    }
+
+    /**
+     * Writes assembly code that effects add, pop pointer 1,
+     * push that 0. This is how the Jack compiler reads a[i].
+     */
+    public void writeArrayLoad() {
+
+        // D=y
+        popToD();
+
+        // SP=SP-1, D=x+y
+        emitInstructionA("SP");
+        emitInstructionC("AM","M-1","");
+        emitInstructionC("D","D+M","");
+
+        // THAT=D, D=M[D]
+        emitInstructionA("THAT");
+        emitInstructionC("AM","D","");
+        emitInstructionC("D","M","");
+
+        pushD();
+    }
+
+    /**
+     * Writes assembly code that effects pop temp 0, pop pointer 1,
+     * push temp 0, pop that 0. This is how the Jack compiler
+     * writes a[i]=x, with the address below the value on the stack.
+     */
+    public void writeArrayStore() {
+
+        // temp 0=value
+        popToD();
+        emitInstructionA("R5");
+        emitInstructionC("M","D","");
+
+        // THAT=address
+        popToD();
+        emitInstructionA("THAT");
+        emitInstructionC("M","D","");
+
+        // M[THAT]=value
+        emitInstructionA("R5");
+        emitInstructionC("D","M","");
+        emitInstructionA("THAT");
+        emitInstructionC("A","M","");
+        emitInstructionC("M","D","");
+    }
+
+    /**
+     * Starts writing the code of a function in place of a call to it.
+     * Until endInline, statics are those of the function's file and
+     * labels are those of this copy of the function.
+     *
+     * @param file         the file the function is defined in
+     * @param functionName the name of the function
+     */
+    public void beginInline(File file, String functionName) {
+
+        mCallerFileName = mCurrentFileName;
+        mCallerFunctionName = mCurrentFunctionName;
+
+        setCurrentFile(file);
+        mCurrentFunctionName = mCallerFunctionName + "$" + functionName + "." + Integer.toString(mInlineCount);
+
+        mInlineCount = mInlineCount + 1;
+        mInlineReturnJumps = false;
+    }
+
+    /**
+     * Ends the code of an inlined function, see beginInline
+     */
+    public void endInline() {
+
+        if(mInlineReturnJumps) {
+
+            spillStackTop();
+
+            // Parser rejects vm labels starting with a '$', so
+            // this does not clash with the function's labels
+            emitInstructionL(mCurrentFunctionName + "$$RETURN");
+        }
+
+        mCurrentFileName = mCallerFileName;
+        mCurrentFunctionName = mCallerFunctionName;
+    }
+
+    /**
+     * Writes A=SP-1-n without changing D, for an A holding SP-1
+     */
+    private void emitStackChain(int n) {
+
+        for (int i=0;i<n;i++) {
+            emitInstructionC("A","A-1","");
+        }
+
+    }
+
+    /**
+     * Pushes an entry further down the stack, used for the arguments
+     * and locals of an inlined function.
+     *
+     * @param slot the position of the entry, 1 for the top
+     */
+    public void writeStackPush(int slot) {
+
+        spillStackTop();
+
+        // D=M[SP-slot]
+        emitInstructionA("SP");
+        emitInstructionC("A","M-1","");
+        emitStackChain(slot - 1);
+        emitInstructionC("D","M","");
+
+        pushD();
+    }
+
+    /**
+     * Pops the top of the stack into an entry further down the
+     * stack, used for the arguments and locals of an inlined function.
+     *
+     * @param slot the position of the entry before the pop,
+     *             2 for the entry right below the top
+     */
+    public void writeStackPop(int slot) {
+
+        if(mStackTopInD) {
+
+            // A=SP, D=top of the stack
+            emitInstructionA("SP");
+            emitInstructionC("A","M","");
+            mStackTopInD = false;
+
+        } else {
+
+            // SP=SP-1, A=SP, D=M[SP]
+            emitInstructionA("SP");
+            emitInstructionC("AM","M-1","");
+            emitInstructionC("D","M","");
+        }
+
+        emitStackChain(slot - 1);
+        emitInstructionC("M","D","");
+    }
+
+    /**
+     * Writes the return of an inlined function. The return value
+     * replaces the first argument, or is pushed if there are none,
+     * and everything above it is popped.
+     *
+     * @param slot the position the return value goes to, that of the
+     *             first argument or of the entry above the arguments
+     *             if there are none, counting the return value as 1
+     * @param last true if this is the last command of the
+     *             function, so nothing follows before the end
+     */
+    public void writeInlineReturn(int slot, boolean last) {
+
+        if(mStackTopInD) {
+
+            // A=SP, D=return value
+            emitInstructionA("SP");
+            emitInstructionC("A","M","");
+            mStackTopInD = false;
+
+        } else {
+
+            // SP=SP-1, A=SP, D=return value
+            emitInstructionA("SP");
+            emitInstructionC("AM","M-1","");
+            emitInstructionC("D","M","");
+        }
 
+        // M[A]=return value, where A is the first argument
+        emitStackChain(slot - 1);
+        emitInstructionC("M","D","");
+
+        // SP=A+1
+        emitInstructionC("D","A+1","");
+        emitInstructionA("SP");
+        emitInstructionC("M","D","");
+
+        if(!last) {
+            emitInstructionA(mCurrentFunctionName + "$$RETURN");
+            emitInstructionC("","0","JMP");
+            mInlineReturnJumps = true;
+        }
+
+    }
+
+    /**
+     * Writes code translated into a buffer by another code writer
+     * after the code written so far. The code is not passed
+     * through the peephole optimizer, the profile or the
+     * command map again.
+     *
+     * @param buffer the buffer, whose code writer has been closed
+     */
+    public void writeBuffer(InstructionBuffer buffer) {
+
+        spillStackTop();
+
+        if(mPeepholeOptimizer!=null) {
+            mPeepholeOptimizer.flush();
+        }
+
+        buffer.writeTo(mOutput);
     }
 
     /**
-     * Closes the output file.
+     * Writes out the output buffered so far, including the code
+     * held by the peephole optimizer, so that the sink has
+     * everything emitted up to this point.
+     */
+    public void checkpoint() {
+
+        if(mPeepholeOptimizer!=null) {
+            mPeepholeOptimizer.flush();
+        }
+
+        if(mOutputFile!=null) {
+            mOutputFile.flush();
+        }
+
+    }
+
+    /**
+     * Writes out the buffered output and closes the output file.
+     * Must also be called when writing to a sink given by the
+     * caller, to pass on the code held by the peephole optimizer.
      */
     public void close() {
 
+        // The last command may have left the top of the stack in D
+        spillStackTop();
+
+        if(mPeepholeOptimizer!=null) {
+            mPeepholeOptimizer.flush();
+        }
+
         if(mOutputFile!=null) {
             mOutputFile.close();
         }
 
     }
+
+    /**
+     * Returns whether writing the assembly text failed,
+     * see AsmWriter.checkError. Always false when the
+     * output is given to an instruction sink.
+     *
+     * @return true if writing the output failed
+     */
+    public boolean checkError() {
+        return mOutputFile!=null && mOutputFile.checkError();
+    }
 }
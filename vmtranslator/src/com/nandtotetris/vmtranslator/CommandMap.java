@@ -0,0 +1,194 @@
+package com.nandtotetris.vmtranslator;
+
+import com.nandtotetris.assembler.InstructionSink;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Maps the ROM addresses of the code written to the vm commands it
+ * comes from. The assembler composes this map with the maps of the
+ * jack compiler into a map to jack lines, see the assembler's
+ * SourceMap for the format.
+ *
+ * The addresses are counted as the instructions pass on to another
+ * sink, after the peephole optimizer. The code writer emits a comment
+ * for each vm command before its code, and the optimizer never moves
+ * or removes comments, so the code which reaches this sink after the
+ * comment of a command is the code of that command. The code writer
+ * tells this map about each comment it emits, and the map takes them
+ * in the same order as the comments arrive.
+ *
+ * The code of an inlined function is mapped to the commands of the
+ * function, in the function it is written in. The commands of a
+ * superinstruction have their comments written together, before the
+ * code, which is mapped to the last of them.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class CommandMap implements InstructionSink {
+
+    // The function of code before the first function
+    private static final String NO_FUNCTION = "-";
+
+    /**
+     * Where the code of a vm command starts
+     */
+    private static class Entry {
+
+        private int address;
+
+        private String fileName;
+
+        private int lineNumber;
+
+        private String function;
+
+        Entry(String fileName, int lineNumber) {
+
+            this.fileName = fileName;
+            this.lineNumber = lineNumber;
+        }
+    }
+
+    private InstructionSink mOut;
+
+    // The commands, in address order
+    private List<Entry> mEntries;
+
+    // The command of each comment emitted which has not arrived
+    // yet, null for comments which are not of a command
+    private LinkedList<Entry> mComments;
+
+    // The number of instructions received
+    private int mAddress;
+
+    // The function being written
+    private String mCurrentFunction;
+
+    // The function which starts at the next label with its name
+    private String mNextFunction;
+
+    /**
+     * @param out the sink receiving the code mapped
+     */
+    public CommandMap(InstructionSink out) {
+
+        mOut = out;
+        mEntries = new ArrayList<Entry>();
+        mComments = new LinkedList<Entry>();
+        mCurrentFunction = NO_FUNCTION;
+    }
+
+    /**
+     * Tells the map about a comment given to the peephole optimizer,
+     * which reaches this sink later
+     *
+     * @param fileName   the vm file of the command the comment is
+     *                   for, null if it is not for a command
+     * @param lineNumber the line of the command in the file
+     */
+    public void expectComment(String fileName, int lineNumber) {
+        mComments.add(fileName == null ? null : new Entry(fileName, lineNumber));
+    }
+
+    /**
+     * Maps the code from the label of a function on to that function
+     *
+     * @param functionName the name of the function, which is
+     *                     also the label it starts at
+     */
+    public void beginFunction(String functionName) {
+        mNextFunction = functionName;
+    }
+
+    /**
+     * Adds the commands of another map after the code received,
+     * such as the map of a file translated in parallel, whose code
+     * is written to the sink after this map
+     */
+    public void addAll(CommandMap map) {
+
+        for(Entry other : map.mEntries) {
+
+            Entry entry = new Entry(other.fileName, other.lineNumber);
+            entry.address = mAddress + other.address;
+            entry.function = other.function;
+
+            mEntries.add(entry);
+        }
+
+        mAddress = mAddress + map.mAddress;
+    }
+
+    /**
+     * Writes the map, one line per command with code: the address
+     * its code starts at, the vm file, the line in the file and the
+     * function, separated by tabs. The last line holds only the
+     * number of instructions.
+     */
+    public void write(Writer out) throws IOException {
+
+        for(int i=0;i<mEntries.size();i++) {
+
+            Entry entry = mEntries.get(i);
+            int end = i + 1 < mEntries.size() ? mEntries.get(i + 1).address : mAddress;
+
+            if(end > entry.address) {
+                out.write(entry.address + "\t" + entry.fileName + "\t" + entry.lineNumber + "\t" + entry.function + "\n");
+            }
+        }
+
+        out.write(mAddress + "\n");
+    }
+
+    @Override
+    public void comment(String text) {
+
+        Entry entry = mComments.isEmpty() ? null : mComments.removeFirst();
+
+        if(entry != null) {
+
+            entry.address = mAddress;
+            entry.function = mCurrentFunction;
+
+            mEntries.add(entry);
+        }
+
+        mOut.comment(text);
+    }
+
+    @Override
+    public void instructionA(String argument) {
+
+        mAddress = mAddress + 1;
+        mOut.instructionA(argument);
+    }
+
+    @Override
+    public void instructionC(String dest, String comp, String jump) {
+
+        mAddress = mAddress + 1;
+        mOut.instructionC(dest, comp, jump);
+    }
+
+    @Override
+    public void instructionL(String label) {
+
+        if(label.equals(mNextFunction)) {
+
+            mCurrentFunction = label;
+            mNextFunction = null;
+
+            // The function command, whose comment came before the label
+            if(!mEntries.isEmpty() && mEntries.get(mEntries.size() - 1).address == mAddress) {
+                mEntries.get(mEntries.size() - 1).function = label;
+            }
+        }
+
+        mOut.instructionL(label);
+    }
+}
@@ -0,0 +1,258 @@
+package com.nandtotetris.vmtranslator;
+
+import com.nandtotetris.assembler.InstructionSink;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts, for each vm function, the vm commands translated, the hack
+ * instructions written, the call sites and the comparisons, to see
+ * which functions take up the ROM.
+ *
+ * The instructions are counted as they pass on to another sink, after
+ * the peephole optimizer, so they are the instructions which end up
+ * in the ROM. The code of an inlined function is counted in the
+ * function it is written in. The code written before the first
+ * function, the bootstrap code and the shared routines, is counted
+ * under INIT.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class FunctionProfile implements InstructionSink {
+
+    // The name the code before the first function is counted under.
+    // Parser rejects vm function names starting with a '$', so
+    // this never clashes.
+    public static final String INIT = "$INIT";
+
+    /**
+     * The counts of one function
+     */
+    public static class Entry {
+
+        private String mName;
+
+        private int mCommands;
+
+        private int mInstructions;
+
+        private int mCallSites;
+
+        private int mComparisons;
+
+        Entry(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getCommands() {
+            return mCommands;
+        }
+
+        public int getInstructions() {
+            return mInstructions;
+        }
+
+        public int getCallSites() {
+            return mCallSites;
+        }
+
+        public int getComparisons() {
+            return mComparisons;
+        }
+    }
+
+    private InstructionSink mOut;
+
+    // The counts of each function, in the order they are written
+    private Map<String, Entry> mEntries;
+
+    // The function being counted
+    private Entry mCurrent;
+
+    // The function which starts at the next label with its name
+    private String mNextFunction;
+
+    /**
+     * @param out the sink receiving the code counted
+     */
+    public FunctionProfile(InstructionSink out) {
+
+        mOut = out;
+        mEntries = new LinkedHashMap<String, Entry>();
+        mCurrent = entry(INIT);
+    }
+
+    /**
+     * Returns the counts of a function, adding them if needed
+     */
+    private Entry entry(String name) {
+
+        Entry entry = mEntries.get(name);
+
+        if(entry == null) {
+            entry = new Entry(name);
+            mEntries.put(name, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Counts the code from the label of a function on as the code
+     * of that function. Instructions written before the label, and
+     * still held by the peephole optimizer, are counted in the
+     * function before.
+     *
+     * @param functionName the name of the function, which is
+     *                     also the label it starts at
+     */
+    public void beginFunction(String functionName) {
+        mNextFunction = functionName;
+    }
+
+    /**
+     * Counts vm commands in the current function
+     *
+     * @param nCommand the number of commands
+     */
+    public void addCommands(int nCommand) {
+        mCurrent.mCommands = mCurrent.mCommands + nCommand;
+    }
+
+    /**
+     * Counts a call written in the current function
+     */
+    public void addCallSite() {
+        mCurrent.mCallSites = mCurrent.mCallSites + 1;
+    }
+
+    /**
+     * Counts an eq, gt or lt written in the current function
+     */
+    public void addComparison() {
+        mCurrent.mComparisons = mCurrent.mComparisons + 1;
+    }
+
+    /**
+     * Adds the counts of another profile, such as the profile of
+     * a file translated in parallel
+     */
+    public void addAll(FunctionProfile profile) {
+
+        for(Entry other : profile.mEntries.values()) {
+
+            Entry entry = entry(other.mName);
+
+            entry.mCommands = entry.mCommands + other.mCommands;
+            entry.mInstructions = entry.mInstructions + other.mInstructions;
+            entry.mCallSites = entry.mCallSites + other.mCallSites;
+            entry.mComparisons = entry.mComparisons + other.mComparisons;
+        }
+    }
+
+    /**
+     * Returns the counts of the functions, the functions with the
+     * most instructions first. Functions with nothing counted, such
+     * as an empty INIT, are left out.
+     */
+    public List<Entry> getEntries() {
+
+        List<Entry> entries = new ArrayList<Entry>();
+
+        for(Entry entry : mEntries.values()) {
+            if(entry.mCommands > 0 || entry.mInstructions > 0) {
+                entries.add(entry);
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+
+                if(a.mInstructions != b.mInstructions) {
+                    return a.mInstructions > b.mInstructions ? -1 : 1;
+                }
+
+                return a.mName.compareTo(b.mName);
+            }
+        });
+
+        return entries;
+    }
+
+    /**
+     * Writes the counts as comma separated values, with a header line
+     */
+    public void writeCsv(Writer out) throws IOException {
+
+        out.write("function,vm_commands,instructions,call_sites,comparisons\n");
+
+        for(Entry entry : getEntries()) {
+            out.write(entry.mName + "," + entry.mCommands + "," + entry.mInstructions + ","
+                    + entry.mCallSites + "," + entry.mComparisons + "\n");
+        }
+    }
+
+    /**
+     * Writes the counts as a JSON array, one object per function.
+     * Vm names have no quotes or backslashes to escape.
+     */
+    public void writeJson(Writer out) throws IOException {
+
+        List<Entry> entries = getEntries();
+
+        out.write("[\n");
+
+        for(int i=0;i<entries.size();i++) {
+
+            Entry entry = entries.get(i);
+
+            out.write("  {\"function\": \"" + entry.mName + "\", \"vm_commands\": " + entry.mCommands
+                    + ", \"instructions\": " + entry.mInstructions + ", \"call_sites\": " + entry.mCallSites
+                    + ", \"comparisons\": " + entry.mComparisons + "}" + (i + 1 < entries.size() ? "," : "") + "\n");
+        }
+
+        out.write("]\n");
+    }
+
+    @Override
+    public void comment(String text) {
+        mOut.comment(text);
+    }
+
+    @Override
+    public void instructionA(String argument) {
+
+        mCurrent.mInstructions = mCurrent.mInstructions + 1;
+        mOut.instructionA(argument);
+    }
+
+    @Override
+    public void instructionC(String dest, String comp, String jump) {
+
+        mCurrent.mInstructions = mCurrent.mInstructions + 1;
+        mOut.instructionC(dest, comp, jump);
+    }
+
+    @Override
+    public void instructionL(String label) {
+
+        if(label.equals(mNextFunction)) {
+            mCurrent = entry(label);
+            mNextFunction = null;
+        }
+
+        mOut.instructionL(label);
+    }
+}
@@ -0,0 +1,321 @@
+package com.nandtotetris.vmtranslator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the functions of a program which can be written in place of
+ * the calls to them: small functions which call no other function.
+ *
+ * An inlined function has no frame. Its arguments are left where the
+ * caller pushed them and its locals are pushed above them, so both are
+ * reached relative to SP. This needs the depth of the stack before each
+ * command of the function to be known, which is the case for the code
+ * the Jack compiler writes: every label is reached with the same depth.
+ *
+ * A function which sets THIS or THAT (pop pointer) saves the caller's
+ * value on the stack, below its locals, and restores it on return, as
+ * the call protocol would.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class Inliner {
+
+    /**
+     * A function which can be inlined
+     */
+    public static class Function {
+
+        private String mName;
+
+        // The file the function is defined in, for its statics
+        private File mFile;
+
+        private int mNumLocals;
+
+        // pointer 0 and/or 1, if the function sets them
+        private List<Integer> mSavedPointers;
+
+        // The commands after the function command
+        private List<VMCommand> mBody;
+
+        // The number of entries pushed since the call before
+        // each command of the body, counting the saved pointers
+        // and the locals. -1 if the command is never reached.
+        private int[] mDepths;
+
+        // One more than the highest argument index used
+        private int mNumArgsUsed;
+
+        public String getName() {
+            return mName;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public int getNumLocals() {
+            return mNumLocals;
+        }
+
+        public List<Integer> getSavedPointers() {
+            return mSavedPointers;
+        }
+
+        public List<VMCommand> getBody() {
+            return mBody;
+        }
+
+        /**
+         * Returns the depth of the stack before a command of the body,
+         * -1 if the command is never reached
+         */
+        public int getDepth(int index) {
+            return mDepths[index];
+        }
+    }
+
+    // The largest function inlined, in commands, counting the
+    // commands pushing its locals and saving pointers
+    private int mThreshold;
+
+    private Map<String, Function> mFunctions;
+
+    /**
+     * @param threshold the largest function inlined, in commands
+     */
+    public Inliner(int threshold) {
+
+        mThreshold = threshold;
+        mFunctions = new HashMap<String, Function>();
+    }
+
+    /**
+     * Looks for functions to inline in a vm file
+     *
+     * @param file     the vm file
+     * @param commands the commands of the file
+     */
+    public void addFile(File file, List<VMCommand> commands) {
+
+        int start = -1;
+
+        for(int i=0;i<=commands.size();i++) {
+
+            if(i == commands.size() || commands.get(i).getType() == CommandTypeVM.C_FUNCTION) {
+
+                if(start >= 0) {
+                    addFunction(file, commands.get(start), commands.subList(start + 1, i));
+                }
+
+                start = i;
+            }
+        }
+    }
+
+    /**
+     * Returns the function to write in place of a call,
+     * null if the call is not inlined
+     *
+     * @param functionName the function called
+     * @param numArgs      the number of arguments of the call
+     */
+    public Function getFunction(String functionName, int numArgs) {
+
+        Function function = mFunctions.get(functionName);
+
+        if(function == null || function.mNumArgsUsed > numArgs) {
+            return null;
+        }
+
+        return function;
+    }
+
+    /**
+     * Returns true if a command is a call written in place
+     */
+    public boolean isInlined(VMCommand command) {
+        return command.getType() == CommandTypeVM.C_CALL
+                && getFunction(command.getArg1(), command.getArg2()) != null;
+    }
+
+    /**
+     * Adds a function if it can be inlined
+     */
+    private void addFunction(File file, VMCommand declaration, List<VMCommand> body) {
+
+        Function function = new Function();
+        function.mName = declaration.getArg1();
+        function.mFile = file;
+        function.mNumLocals = declaration.getArg2();
+        function.mSavedPointers = new ArrayList<Integer>();
+        function.mBody = new ArrayList<VMCommand>(body);
+        function.mNumArgsUsed = 0;
+
+        for(VMCommand command : body) {
+
+            if(command.getType() == CommandTypeVM.C_CALL || command.getType() == CommandTypeVM.C_FUNCTION) {
+                return;
+            }
+
+            if(command.is(CommandTypeVM.C_POP, "pointer") && !function.mSavedPointers.contains(command.getArg2())) {
+                function.mSavedPointers.add(command.getArg2());
+            }
+
+            if((command.is(CommandTypeVM.C_PUSH, "argument") || command.is(CommandTypeVM.C_POP, "argument"))
+                    && command.getArg2() >= function.mNumArgsUsed) {
+                function.mNumArgsUsed = command.getArg2() + 1;
+            }
+        }
+
+        if(body.size() + function.mNumLocals + 2 * function.mSavedPointers.size() > mThreshold) {
+            return;
+        }
+
+        function.mDepths = stackDepths(body, function.mSavedPointers.size() + function.mNumLocals);
+
+        if(function.mDepths != null) {
+            mFunctions.put(function.mName, function);
+        }
+    }
+
+    /**
+     * Finds the depth of the stack before each command of a function
+     * body which calls no other function
+     *
+     * @param body  the commands of the body
+     * @param start the depth before the first command
+     * @return the depths, -1 for commands which are never reached,
+     *         or null if the depth at some command is not known or
+     *         the body can run off its end
+     */
+    private static int[] stackDepths(List<VMCommand> body, int start) {
+
+        int[] depths = new int[body.size()];
+
+        // The depth at each label, from the commands
+        // jumping to it or falling through to it
+        Map<String, Integer> labelDepths = new HashMap<String, Integer>();
+
+        int depth = start;
+        boolean reached = true;
+
+        for(int i=0;i<body.size();i++) {
+
+            VMCommand command = body.get(i);
+
+            if(command.getType() == CommandTypeVM.C_LABEL) {
+
+                Integer labelDepth = labelDepths.get(command.getArg1());
+
+                if(!reached) {
+
+                    // Only reached by jumps, which must come before it
+                    if(labelDepth == null) {
+                        return null;
+                    }
+
+                    depth = labelDepth;
+                    reached = true;
+
+                } else if(labelDepth != null && labelDepth != depth) {
+                    return null;
+                }
+
+                labelDepths.put(command.getArg1(), depth);
+            }
+
+            if(!reached) {
+                depths[i] = -1;
+                continue;
+            }
+
+            depths[i] = depth;
+
+            switch (command.getType()) {
+
+                case C_PUSH:
+
+                    depth = depth + 1;
+                    break;
+
+                case C_POP:
+
+                    depth = depth - 1;
+                    break;
+
+                case C_ARITHMETIC:
+
+                    if(!command.getArg1().equals("neg") && !command.getArg1().equals("not")) {
+                        depth = depth - 1;
+                    }
+
+                    break;
+
+                case C_IF:
+                case C_GOTO:
+
+                    if(command.getType() == CommandTypeVM.C_IF) {
+                        depth = depth - 1;
+                    } else {
+                        reached = false;
+                    }
+
+                    Integer labelDepth = labelDepths.get(command.getArg1());
+
+                    if(labelDepth != null && labelDepth != depth) {
+                        return null;
+                    }
+
+                    labelDepths.put(command.getArg1(), depth);
+                    break;
+
+                case C_RETURN:
+
+                    // The return value must be above the locals
+                    if(depth <= start) {
+                        return null;
+                    }
+
+                    reached = false;
+                    break;
+
+                default:
+
+                    break;
+            }
+
+            // Never below the locals
+            if(depth < start) {
+                return null;
+            }
+        }
+
+        // Every jump must be to a label of the body, and the
+        // body must not run off its end
+        for(String label : labelDepths.keySet()) {
+
+            boolean defined = false;
+
+            for(VMCommand command : body) {
+                if(command.is(CommandTypeVM.C_LABEL, label)) {
+                    defined = true;
+                }
+            }
+
+            if(!defined) {
+                return null;
+            }
+        }
+
+        if(reached) {
+            return null;
+        }
+
+        return depths;
+    }
+}
@@ -0,0 +1,99 @@
+package com.nandtotetris.vmtranslator;
+
+import com.nandtotetris.assembler.InstructionSink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds hack assembly code in memory, to be written to
+ * another sink later. Used to translate vm files in parallel,
+ * each into its own buffer.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class InstructionBuffer implements InstructionSink {
+
+    // 'A', 'C', 'L' or '/' for a comment, one per entry
+    private StringBuilder mTypes;
+
+    // The argument, label or comment text of each entry,
+    // or dest, comp and jump for a C-instruction
+    private List<String> mFields;
+
+    public InstructionBuffer() {
+
+        mTypes = new StringBuilder();
+        mFields = new ArrayList<String>();
+    }
+
+    @Override
+    public void comment(String text) {
+
+        mTypes.append('/');
+        mFields.add(text);
+    }
+
+    @Override
+    public void instructionA(String argument) {
+
+        mTypes.append('A');
+        mFields.add(argument);
+    }
+
+    @Override
+    public void instructionC(String dest, String comp, String jump) {
+
+        mTypes.append('C');
+        mFields.add(dest);
+        mFields.add(comp);
+        mFields.add(jump);
+    }
+
+    @Override
+    public void instructionL(String label) {
+
+        mTypes.append('L');
+        mFields.add(label);
+    }
+
+    /**
+     * Gives all the code held, in order, to another sink
+     *
+     * @param sink the sink receiving the code
+     */
+    public void writeTo(InstructionSink sink) {
+
+        int field = 0;
+
+        for(int i=0;i<mTypes.length();i++) {
+
+            switch (mTypes.charAt(i)) {
+
+                case 'A':
+
+                    sink.instructionA(mFields.get(field));
+                    field = field + 1;
+                    break;
+
+                case 'C':
+
+                    sink.instructionC(mFields.get(field), mFields.get(field + 1), mFields.get(field + 2));
+                    field = field + 3;
+                    break;
+
+                case 'L':
+
+                    sink.instructionL(mFields.get(field));
+                    field = field + 1;
+                    break;
+
+                default:
+
+                    sink.comment(mFields.get(field));
+                    field = field + 1;
+                    break;
+            }
+        }
+    }
+}
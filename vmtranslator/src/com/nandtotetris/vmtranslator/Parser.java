@@ -1,26 +1,58 @@
 package com.nandtotetris.vmtranslator;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.Reader;
 
 /**
  * Handles the parsing of a single vm file. A new object should be created
  * for each vm file. Gives access to various parts of a vm command
  * in the input file.
  *
+ * Each line is read and split into its words once, in advance. The
+ * command type and the arguments are kept in fields, so the accessors
+ * do no work.
+ *
  * @author gaganpreet1810@gmail.com
  */
 public class Parser {
 
-    public static final String READ_MODE = "r";
-
-    // the command currently pointed to by the file pointer
+    // the command currently pointed to by the file pointer,
+    // without comments and surrounding whitespace
     private String mCurrentCommand;
 
+    // the parts of the current command
+    private CommandTypeVM mCommandType;
+    private String mArg1;
+    private int mArg2;
+
+    // the next line with a command, read by hasMoreCommands
+    private String mNextLine;
+
+    // the number of the line of the next command, from 1
+    private int mNextLineNumber;
+
+    // the number of the line of the current command
+    private int mCurrentLineNumber;
+
+    // the number of lines read
+    private int mLineNumber;
+
     // the input VM file to parse
-    private RandomAccessFile mInputFile;
+    private BufferedReader mInputFile;
+
+    // whether reading the input failed
+    private boolean mReadFailed;
+
+    // the start and end of each word of the line being split
+    private int[] mWordStart;
+    private int[] mWordEnd;
+
+    // a command has at most three words
+    private static final int MAX_WORDS = 3;
 
     /**
      * Opens an input vm file for parsing
@@ -41,16 +73,46 @@ public class Parser {
      */
     public Parser(String fileName) {
 
+        this(openFile(fileName));
+
+    }
+
+    /**
+     * Gets ready to parse vm code read from a reader, such as
+     * one for the standard input. Only one line is read ahead.
+     *
+     * @param reader the reader of the vm code, null
+     *               for no code. Closed by close.
+     */
+    public Parser(Reader reader) {
+
+        mCurrentCommand = null;
+        mNextLine = null;
+        mLineNumber = 0;
+        mWordStart = new int[MAX_WORDS + 1];
+        mWordEnd = new int[MAX_WORDS + 1];
+
+        if(reader != null) {
+            mInputFile = new BufferedReader(reader);
+        }
+
+    }
+
+    /**
+     * Opens a file for reading, returns null if it can not be opened
+     */
+    private static Reader openFile(String fileName) {
+
         try {
 
-            mInputFile = new RandomAccessFile(fileName,READ_MODE);
-            mCurrentCommand = null;
+            return new FileReader(fileName);
 
         } catch (FileNotFoundException e) {
 
             e.printStackTrace();
         }
 
+        return null;
     }
 
 
@@ -66,13 +128,19 @@ public class Parser {
         if(inputString == null)
             return false;
 
-        String whitespaceRegex = "(\\s*)";
-        String commentRegex = "(//.*)";
+        // anything but whitespace before an optional comment
+        for(int i=0;i<inputString.length();i++) {
+
+            char c = inputString.charAt(i);
+
+            if(c == '/' && inputString.startsWith("//", i))
+                return false;
 
-        // zero or more whitespaces followed by an optional comment
-        String notA_CommandRegex = whitespaceRegex+commentRegex+"?";
+            if(!Character.isWhitespace(c))
+                return true;
+        }
 
-        return !(inputString.matches(notA_CommandRegex));
+        return false;
     }
 
     /**
@@ -85,25 +153,28 @@ public class Parser {
      */
     public Boolean hasMoreCommands() {
 
-        try {
+        if(mNextLine != null)
+            return true;
 
-            long currentFilePointer;
+        if(mInputFile == null)
+            return false;
 
-            while(true) {
+        try {
 
-                // save the current file pointer
-                currentFilePointer = mInputFile.getFilePointer();
+            while(true) {
 
                 String line = mInputFile.readLine();
 
                 if(line == null)
                     return false;
 
+                mLineNumber = mLineNumber + 1;
+
                 if(isAVMCommand(line)) {
 
                     // advance method should be able to access the command.
-                    // move the pointer behind the line.
-                    mInputFile.seek(currentFilePointer);
+                    mNextLine = line;
+                    mNextLineNumber = mLineNumber;
 
                     return true;
                 }
@@ -112,24 +183,24 @@ public class Parser {
 
         } catch(IOException e) {
 
-            System.out.println("Error: IO Exception while processing input vm file");
-            e.printStackTrace();
-
-            try {
+            System.err.println("Error: IO Exception while processing input vm file: " + e.getMessage());
 
-                if(mInputFile != null) {
-                    mInputFile.close();
-                }
-
-            } catch(IOException f) {
-                System.out.println("Error: IO Exception while closing input file");
-                f.printStackTrace();
-            }
+            mReadFailed = true;
+            close();
 
         }
 
-        // should never reach this line
-        return true;
+        return false;
+    }
+
+    /**
+     * Returns whether reading the input failed, in which case
+     * hasMoreCommands returned false before the end of the input.
+     *
+     * @return true if reading the input failed
+     */
+    public boolean readFailed() {
+        return mReadFailed;
     }
 
     /**
@@ -139,57 +210,180 @@ public class Parser {
      */
     public void advance() {
 
-        try {
+        if(mNextLine == null && !hasMoreCommands())
+            return;
 
-            String line = mInputFile.readLine();
-            String tailWhiteSpaceOrCommentRegex = "((\\s*)(//.*)?)$";
-            mCurrentCommand = line.replaceAll(tailWhiteSpaceOrCommentRegex,"");
+        String line = mNextLine;
+        mNextLine = null;
+        mCurrentLineNumber = mNextLineNumber;
 
-        } catch (IOException e) {
+        int nWord = splitWords(line);
 
-            e.printStackTrace();
+        if(nWord > MAX_WORDS)
+            throw invalidCommand(line);
 
-            try {
-                if (mInputFile != null)
-                    mInputFile.close();
-            } catch (IOException f) {
-                f.printStackTrace();
-            }
+        mCurrentCommand = line.substring(mWordStart[0], mWordEnd[nWord - 1]);
+        mCommandType = commandType(line, mWordStart[0], mWordEnd[0]);
+
+        int nExpectedWord;
+
+        switch (mCommandType) {
+
+            case C_ARITHMETIC:
+
+                nExpectedWord = 1;
+                mArg1 = line.substring(mWordStart[0], mWordEnd[0]);
+                break;
+
+            case C_RETURN:
+
+                nExpectedWord = 1;
+                mArg1 = null;
+                break;
+
+            case C_PUSH:
+            case C_POP:
+            case C_FUNCTION:
+            case C_CALL:
+
+                nExpectedWord = 3;
+                break;
+
+            default:
+
+                nExpectedWord = 2;
+                break;
+        }
+
+        if(nWord != nExpectedWord)
+            throw invalidCommand(line);
+
+        if(nWord > 1) {
+
+            mArg1 = line.substring(mWordStart[1], mWordEnd[1]);
+
+            // names starting with a '$' are kept for the labels
+            // the code writer makes up, so they never clash
+            if(mArg1.startsWith("$"))
+                throw invalidCommand(line);
         }
 
+        mArg2 = 0;
+
+        if(nWord > 2)
+            mArg2 = parseNumber(line, mWordStart[2], mWordEnd[2]);
+
     }
 
     /**
-     * Evaluates the current command and
-     * returns the type of the VM command.
-     * advance must have been called so that the
-     * current command is set.
+     * Finds the words of a line before any comment, recording
+     * where each starts and ends. Stops after one more word
+     * than a command can have.
      *
-     * @return the type of the VM command
+     * @return the number of words found
      */
-    public CommandTypeVM commandType() {
+    private int splitWords(String line) {
+
+        int nWord = 0;
+        int i = 0;
+        int length = line.length();
+
+        while(nWord <= MAX_WORDS) {
+
+            while(i < length && Character.isWhitespace(line.charAt(i)))
+                i++;
+
+            if(i == length || line.startsWith("//", i))
+                break;
+
+            mWordStart[nWord] = i;
+
+            while(i < length && !Character.isWhitespace(line.charAt(i)) && !line.startsWith("//", i))
+                i++;
+
+            mWordEnd[nWord] = i;
+            nWord++;
+        }
+
+        return nWord;
+    }
+
+    /**
+     * Returns the type of the command named by a word of a line
+     */
+    private CommandTypeVM commandType(String line, int start, int end) {
+
+        switch (line.substring(start, end)) {
+
+            case "push" :
+                return CommandTypeVM.C_PUSH;
+            case "pop" :
+                return CommandTypeVM.C_POP;
+
+            case "label" :
+                return CommandTypeVM.C_LABEL;
+            case "if-goto" :
+                return CommandTypeVM.C_IF;
+            case "goto" :
+                return CommandTypeVM.C_GOTO;
+
+            case "function" :
+                return CommandTypeVM.C_FUNCTION;
+            case "return" :
+                return CommandTypeVM.C_RETURN;
+            case "call" :
+                return CommandTypeVM.C_CALL;
+
+            case "add" :
+            case "sub" :
+            case "neg" :
+            case "eq" :
+            case "gt" :
+            case "lt" :
+            case "and" :
+            case "or" :
+            case "not" :
+                return CommandTypeVM.C_ARITHMETIC;
+
+            default:
+                throw invalidCommand(line);
+        }
+
+    }
+
+    /**
+     * Returns the non negative decimal number in a word of a line
+     */
+    private int parseNumber(String line, int start, int end) {
 
-        if (mCurrentCommand.contains("push"))
-            return CommandTypeVM.C_PUSH;
-        if (mCurrentCommand.contains("pop"))
-            return CommandTypeVM.C_POP;
+        int number = 0;
 
-        if (mCurrentCommand.contains("label"))
-            return CommandTypeVM.C_LABEL;
-        if (mCurrentCommand.contains("if"))
-            return CommandTypeVM.C_IF;
-        if (mCurrentCommand.contains("goto"))
-            return CommandTypeVM.C_GOTO;
+        for(int i=start;i<end;i++) {
 
-        if (mCurrentCommand.contains("function"))
-            return CommandTypeVM.C_FUNCTION;
-        if (mCurrentCommand.contains("return"))
-            return CommandTypeVM.C_RETURN;
-        if (mCurrentCommand.contains("call"))
-            return CommandTypeVM.C_CALL;
+            char c = line.charAt(i);
 
-        return CommandTypeVM.C_ARITHMETIC;
+            if(c < '0' || c > '9' || number > (Integer.MAX_VALUE - 9) / 10)
+                throw invalidCommand(line);
 
+            number = number * 10 + (c - '0');
+        }
+
+        return number;
+    }
+
+    private IllegalArgumentException invalidCommand(String line) {
+        return new IllegalArgumentException("Invalid vm command at line " + mCurrentLineNumber + ": " + line.trim());
+    }
+
+    /**
+     * Returns the type of the VM command.
+     * advance must have been called so that the
+     * current command is set.
+     *
+     * @return the type of the VM command
+     */
+    public CommandTypeVM commandType() {
+        return mCommandType;
     }
 
     /**
@@ -210,20 +404,9 @@ public class Parser {
      */
     public String arg1() {
 
-        assert !commandType().equals(CommandTypeVM.C_RETURN);
-
-        if(commandType()==CommandTypeVM.C_ARITHMETIC)
-            return mCurrentCommand;
+        assert mCommandType != CommandTypeVM.C_RETURN;
 
-        String firstArgument;
-
-        // remove the command name
-        firstArgument = mCurrentCommand.replaceFirst("([a-z-]+)( )","");
-
-        // remove second argument if present
-        firstArgument = firstArgument.replaceAll("( )(\\d)+","");
-
-        return firstArgument;
+        return mArg1;
     }
 
     /**
@@ -238,15 +421,20 @@ public class Parser {
      */
     public int arg2() {
 
-        assert commandType().equals(CommandTypeVM.C_PUSH) ||
-                commandType().equals(CommandTypeVM.C_POP) ||
-                commandType().equals(CommandTypeVM.C_FUNCTION) ||
-                commandType().equals(CommandTypeVM.C_CALL);
+        assert mCommandType == CommandTypeVM.C_PUSH ||
+                mCommandType == CommandTypeVM.C_POP ||
+                mCommandType == CommandTypeVM.C_FUNCTION ||
+                mCommandType == CommandTypeVM.C_CALL;
 
-        // extract the second argument from the VM command
-        String secondArgument = mCurrentCommand.replaceAll("(.*)( )((\\d)+)","$3");
+        return mArg2;
+    }
 
-        return Integer.parseInt(secondArgument);
+    /**
+     * Returns the number of the line of the current
+     * command in the input file, from 1
+     */
+    public int getLineNumber() {
+        return mCurrentLineNumber;
     }
 
     /**
@@ -256,6 +444,7 @@ public class Parser {
         try {
             if (mInputFile != null) {
                mInputFile.close();
+               mInputFile = null;
             }
         } catch (IOException e) {
             System.out.println("Error: Could not close input file");
@@ -0,0 +1,491 @@
+package com.nandtotetris.vmtranslator;
+
+import com.nandtotetris.assembler.InstructionSink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes redundant instructions from the hack assembly code given to it
+ * and passes the rest on to another sink. The code writer translates each
+ * vm command on its own, which leaves a lot of these at the seams between
+ * commands.
+ *
+ * The last instructions received are held in a small window, where
+ * the following are removed as new instructions arrive:
+ *
+ * - An A-instruction whose value is never used, as it is followed
+ *   by another A-instruction or a label.
+ * - An A-instruction loading the value A already holds.
+ * - An SP increment followed by an SP decrement, when nothing in
+ *   between uses SP. This is a push followed by a pop. A push with
+ *   AM=M+1 and a pop with AM=M-1 also use the address they leave
+ *   in A, so these become A=M+1 and A=M instead of going away.
+ * - @SP, A=M loading the address an earlier @SP, A=M loaded, when
+ *   nothing in between changes A. The addresses loaded from SP are
+ *   on the stack, never SP itself, so writing to them leaves SP as
+ *   it was.
+ * - D=M right after M=D.
+ * - A jump to the label right after it.
+ *
+ * and M=x followed by A=M is merged into AM=x, and A=M+1 followed
+ * by A=A-1 into A=M.
+ *
+ * The window is passed on whenever a label arrives, so labels are never
+ * moved or removed. The code writer never relies on the value of A after
+ * a label, which is what makes removing the A-instructions before a label
+ * safe.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class PeepholeOptimizer implements InstructionSink {
+
+    // Number of instructions held before the oldest is passed on
+    private static final int WINDOW_SIZE = 32;
+
+    // Stands for the value of A when it is an address on the
+    // stack, one of the addresses around the one SP holds
+    private static final String STACK_ADDRESS = "*SP";
+
+    /**
+     * An instruction or a comment held in the window
+     */
+    private static class Instruction {
+
+        // 'A', 'C' or '/' for a comment
+        private char type;
+
+        // The argument of an A-instruction or the text of a comment
+        private String argument;
+
+        // The fields of a C-instruction
+        private String dest;
+        private String comp;
+        private String jump;
+
+        Instruction(char type, String argument, String dest, String comp, String jump) {
+
+            this.type = type;
+            this.argument = argument;
+            this.dest = dest;
+            this.comp = comp;
+            this.jump = jump;
+        }
+    }
+
+    private InstructionSink mOut;
+
+    private List<Instruction> mWindow;
+
+    // The number of instructions (A and C) in the window
+    private int mWindowInstructionCount;
+
+    private int mInstructionsIn;
+
+    private int mInstructionsOut;
+
+    /**
+     * @param out the sink receiving the optimized code
+     */
+    public PeepholeOptimizer(InstructionSink out) {
+
+        mOut = out;
+        mWindow = new ArrayList<Instruction>();
+        mWindowInstructionCount = 0;
+        mInstructionsIn = 0;
+        mInstructionsOut = 0;
+    }
+
+    /**
+     * @return the number of A and C instructions received
+     */
+    public int getInstructionsIn() {
+        return mInstructionsIn;
+    }
+
+    /**
+     * @return the number of A and C instructions passed on,
+     *         counting those still in the window
+     */
+    public int getInstructionsOut() {
+        return mInstructionsOut + mWindowInstructionCount;
+    }
+
+    @Override
+    public void comment(String text) {
+        mWindow.add(new Instruction('/', text, null, null, null));
+    }
+
+    @Override
+    public void instructionA(String argument) {
+
+        mInstructionsIn = mInstructionsIn + 1;
+
+        int last = previousInstruction(mWindow.size());
+
+        if(last >= 0 && mWindow.get(last).type == 'A') {
+
+            // The value loaded by the last instruction is never used
+            remove(last);
+
+        } else if(argument.equals(valueOfA(mWindow.size()))) {
+
+            // A already holds the value
+            return;
+        }
+
+        add(new Instruction('A', argument, null, null, null));
+    }
+
+    @Override
+    public void instructionC(String dest, String comp, String jump) {
+
+        mInstructionsIn = mInstructionsIn + 1;
+
+        int last = previousInstruction(mWindow.size());
+
+        // M=x followed by A=M is AM=x
+        if(dest.equals("A") && comp.equals("M") && jump.isEmpty() && last >= 0) {
+
+            Instruction instruction = mWindow.get(last);
+
+            if(instruction.type == 'C' && instruction.dest.equals("M") && instruction.jump.isEmpty()) {
+                instruction.dest = "AM";
+                return;
+            }
+        }
+
+        // M=D followed by D=M leaves D as it was
+        if(dest.equals("D") && comp.equals("M") && jump.isEmpty() && last >= 0) {
+
+            Instruction instruction = mWindow.get(last);
+
+            if(instruction.type == 'C' && instruction.dest.equals("M")
+                    && instruction.comp.equals("D") && instruction.jump.isEmpty()) {
+                return;
+            }
+        }
+
+        // SP=SP-1 undoing an earlier SP=SP+1
+        if((dest.equals("M") || dest.equals("AM")) && comp.equals("M-1") && jump.isEmpty()
+                && isStackPointer(valueOfA(mWindow.size())) && removeStackPointerIncrement()) {
+
+            if(dest.equals("M")) {
+                return;
+            }
+
+            // A=SP-1, which is what SP holds now
+            dest = "A";
+            comp = "M";
+        }
+
+        // A=M loading the address A got from SP before
+        if(dest.equals("A") && comp.equals("M") && jump.isEmpty() && removeStackPointerReload()) {
+            return;
+        }
+
+        add(new Instruction('C', null, dest, comp, jump));
+    }
+
+    @Override
+    public void instructionL(String label) {
+
+        while(true) {
+
+            int last = previousInstruction(mWindow.size());
+
+            if(last < 0) {
+                break;
+            }
+
+            Instruction instruction = mWindow.get(last);
+
+            if(instruction.type == 'A') {
+
+                // A is not used after a label
+                remove(last);
+                continue;
+            }
+
+            int beforeLast = previousInstruction(last);
+
+            // A jump to this label, which has no other effect
+            if(!instruction.jump.isEmpty() && instruction.dest.isEmpty()
+                    && beforeLast >= 0 && label.equals(mWindow.get(beforeLast).argument)) {
+                remove(last);
+                remove(beforeLast);
+                continue;
+            }
+
+            break;
+        }
+
+        flush();
+        mOut.instructionL(label);
+    }
+
+    /**
+     * Passes on all the instructions held in the window
+     */
+    public void flush() {
+
+        while(!mWindow.isEmpty()) {
+            passOldest();
+        }
+    }
+
+    /**
+     * Adds an instruction to the window, passing on the
+     * oldest instruction if the window is full
+     */
+    private void add(Instruction instruction) {
+
+        mWindow.add(instruction);
+        mWindowInstructionCount = mWindowInstructionCount + 1;
+
+        while(mWindowInstructionCount > WINDOW_SIZE) {
+            passOldest();
+        }
+    }
+
+    /**
+     * Removes an instruction from the window
+     */
+    private void remove(int index) {
+
+        mWindow.remove(index);
+        mWindowInstructionCount = mWindowInstructionCount - 1;
+    }
+
+    /**
+     * Passes on the oldest instruction or comment in the window
+     */
+    private void passOldest() {
+
+        Instruction instruction = mWindow.remove(0);
+
+        switch (instruction.type) {
+
+            case 'A':
+
+                mOut.instructionA(instruction.argument);
+                break;
+
+            case 'C':
+
+                mOut.instructionC(instruction.dest, instruction.comp, instruction.jump);
+                break;
+
+            default:
+
+                mOut.comment(instruction.argument);
+                return;
+        }
+
+        mWindowInstructionCount = mWindowInstructionCount - 1;
+        mInstructionsOut = mInstructionsOut + 1;
+    }
+
+    /**
+     * Returns the index of the last instruction in the window
+     * before an index, skipping comments
+     *
+     * @return the index, -1 if there is none
+     */
+    private int previousInstruction(int index) {
+
+        index = index - 1;
+
+        while(index >= 0 && mWindow.get(index).type == '/') {
+            index = index - 1;
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the value of A just before the instruction at an index
+     *
+     * @return the argument of the A-instruction which set it,
+     *         null if unknown
+     */
+    private String valueOfA(int index) {
+
+        for(int i = previousInstruction(index); i >= 0; i = previousInstruction(i)) {
+
+            Instruction instruction = mWindow.get(i);
+
+            if(instruction.type == 'A') {
+                return instruction.argument;
+            }
+
+            if(instruction.dest.contains("A")) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if an A-instruction argument is the address of SP
+     */
+    private static boolean isStackPointer(String argument) {
+        return "SP".equals(argument) || "R0".equals(argument) || "0".equals(argument);
+    }
+
+    /**
+     * Removes the last SP=SP+1 in the window, if SP is not used
+     * after it. Called when SP=SP-1 arrives, which is then dropped too.
+     * An AM=M+1 increment is turned into A=M+1 instead, which leaves
+     * A as it was for the instructions after it.
+     *
+     * @return true if the increment was removed
+     */
+    private boolean removeStackPointerIncrement() {
+
+        int increment = previousInstruction(mWindow.size());
+
+        while(increment >= 0) {
+
+            Instruction instruction = mWindow.get(increment);
+
+            if(instruction.type == 'C' && instruction.comp.equals("M+1")
+                    && (instruction.dest.equals("M") || instruction.dest.equals("AM"))
+                    && instruction.jump.isEmpty()) {
+                break;
+            }
+
+            increment = previousInstruction(increment);
+        }
+
+        if(increment < 0 || !isStackPointer(valueOfA(increment))) {
+            return false;
+        }
+
+        Instruction incrementInstruction = mWindow.get(increment);
+
+        // Nothing after the increment may jump or
+        // access memory that could be SP
+        String valueOfA = incrementInstruction.dest.equals("AM") ? STACK_ADDRESS : "SP";
+
+        for(int i = increment + 1; i < mWindow.size(); i++) {
+
+            Instruction instruction = mWindow.get(i);
+
+            if(instruction.type == 'A') {
+                valueOfA = instruction.argument;
+            }
+            else if(instruction.type == 'C') {
+
+                if(!instruction.jump.isEmpty()) {
+                    return false;
+                }
+
+                boolean accessesMemory = instruction.dest.contains("M") || instruction.comp.contains("M");
+
+                if(accessesMemory && (valueOfA == null || isStackPointer(valueOfA))) {
+                    return false;
+                }
+
+                // Stepping A from a stack address stays on the stack
+                boolean stepsOnStack = STACK_ADDRESS.equals(valueOfA)
+                        && (instruction.comp.equals("A+1") || instruction.comp.equals("A-1"));
+
+                if(instruction.dest.contains("A") && !stepsOnStack) {
+                    valueOfA = null;
+                }
+            }
+        }
+
+        if(incrementInstruction.dest.equals("AM")) {
+
+            incrementInstruction.dest = "A";
+
+            // A=M+1 followed by A=A-1 is A=M
+            int next = nextInstruction(increment + 1);
+
+            if(next >= 0 && isInstructionC(mWindow.get(next), "A", "A-1")) {
+                remove(next);
+                incrementInstruction.comp = "M";
+            }
+
+            return true;
+        }
+
+        remove(increment);
+
+        // The A-instruction before the increment may now be unused
+        int before = previousInstruction(increment);
+        int after = nextInstruction(increment);
+
+        if(before >= 0 && after >= 0 && mWindow.get(before).type == 'A' && mWindow.get(after).type == 'A') {
+            remove(before);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes the @SP at the end of the window when the A=M following
+     * it would load the address A already holds: an earlier @SP, A=M
+     * loaded it and nothing since changed A. Nothing in between wrote
+     * to SP either, since A held a stack address all along.
+     *
+     * @return true if the @SP was removed, and the A=M is not needed
+     */
+    private boolean removeStackPointerReload() {
+
+        int last = previousInstruction(mWindow.size());
+
+        if(last < 0 || mWindow.get(last).type != 'A' || !isStackPointer(mWindow.get(last).argument)) {
+            return false;
+        }
+
+        // The last instruction which changed A before the @SP
+        int load = previousInstruction(last);
+
+        while(load >= 0 && mWindow.get(load).type == 'C' && !mWindow.get(load).dest.contains("A")) {
+            load = previousInstruction(load);
+        }
+
+        if(load < 0 || !isInstructionC(mWindow.get(load), "A", "M")) {
+            return false;
+        }
+
+        int before = previousInstruction(load);
+
+        if(before < 0 || mWindow.get(before).type != 'A' || !isStackPointer(mWindow.get(before).argument)) {
+            return false;
+        }
+
+        remove(last);
+
+        return true;
+    }
+
+    /**
+     * Returns true if an instruction is the C-instruction
+     * dest=comp, with no jump
+     */
+    private static boolean isInstructionC(Instruction instruction, String dest, String comp) {
+
+        return instruction.type == 'C' && instruction.dest.equals(dest)
+                && instruction.comp.equals(comp) && instruction.jump.isEmpty();
+    }
+
+    /**
+     * Returns the index of the first instruction in the window
+     * at or after an index, skipping comments
+     *
+     * @return the index, -1 if there is none
+     */
+    private int nextInstruction(int index) {
+
+        while(index < mWindow.size() && mWindow.get(index).type == '/') {
+            index = index + 1;
+        }
+
+        return index < mWindow.size() ? index : -1;
+    }
+}
@@ -0,0 +1,80 @@
+package com.nandtotetris.vmtranslator;
+
+/**
+ * A vm command read by the parser. The translator keeps the commands
+ * of a file so that it can look ahead at the commands that follow.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class VMCommand {
+
+    private CommandTypeVM mType;
+
+    // See Parser.arg1, null for C_RETURN
+    private String mArg1;
+
+    // See Parser.arg2, 0 if the command has no second argument
+    private int mArg2;
+
+    // The command as written in the vm file
+    private String mText;
+
+    // The line of the command in the vm file, from 1
+    private int mLineNumber;
+
+    /**
+     * @param type       the type of the command
+     * @param arg1       the first argument, null for C_RETURN
+     * @param arg2       the second argument, 0 if none
+     * @param text       the command as written in the vm file
+     * @param lineNumber the line of the command in the vm file
+     */
+    public VMCommand(CommandTypeVM type, String arg1, int arg2, String text, int lineNumber) {
+
+        mType = type;
+        mArg1 = arg1;
+        mArg2 = arg2;
+        mText = text;
+        mLineNumber = lineNumber;
+    }
+
+    public CommandTypeVM getType() {
+        return mType;
+    }
+
+    public String getArg1() {
+        return mArg1;
+    }
+
+    public int getArg2() {
+        return mArg2;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    /**
+     * Returns true if this command has a given type and first argument
+     *
+     * @param type the type to check
+     * @param arg1 the first argument to check, the command
+     *             itself for arithmetic commands
+     */
+    public boolean is(CommandTypeVM type, String arg1) {
+        return mType == type && arg1.equals(mArg1);
+    }
+
+    /**
+     * Returns true if this command is eq, gt or lt
+     */
+    public boolean isComparison() {
+        return is(CommandTypeVM.C_ARITHMETIC, "eq")
+                || is(CommandTypeVM.C_ARITHMETIC, "gt")
+                || is(CommandTypeVM.C_ARITHMETIC, "lt");
+    }
+}
@@ -1,9 +1,360 @@
 package com.nandtotetris.vmtranslator;
 
+import com.nandtotetris.assembler.Assembler;
+import com.nandtotetris.assembler.RomBuilder;
+import com.nandtotetris.assembler.SourceMap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class VMTranslator {
 
+    // Size in chars of the output buffer of the code writer
+    private int mBufferSize;
+
+    // Whether calls and returns use shared routines
+    private boolean mSharedCallReturn;
+
+    // Whether eq, gt and lt use shared routines
+    private boolean mSharedComparisons;
+
+    // Whether the code is passed through a peephole optimizer
+    private boolean mPeephole;
+
+    // Whether the top of the stack is kept in D
+    private boolean mCacheStackTop;
+
+    // Whether common sequences of commands are
+    // translated as superinstructions
+    private boolean mSuperinstructions;
+
+    // Whether functions which can not be reached from
+    // Sys.init are left out of the output
+    private boolean mEliminateDeadFunctions;
+
+    // The number of functions in the program, found
+    // by dead function elimination
+    private int mFunctionCount;
+
+    // Whether the files of a directory are translated in parallel
+    private boolean mParallel;
+
+    // Instructions in and out of the peephole optimizers
+    // of the files translated in parallel
+    private int mPeepholeInstructionsIn;
+    private int mPeepholeInstructionsOut;
+
+    // The largest function written in place of the calls
+    // to it, in commands, 0 to inline no function
+    private int mInlineThreshold;
+
+    // The functions to inline, found before translating
+    private Inliner mInliner;
+
+    // The bootstrap code written before the vm code
+    private Bootstrap mBootstrap;
+
+    // Where the size of each function is reported,
+    // null for no report
+    private File mProfileFile;
+
+    // Whether the ROM addresses of the code are mapped
+    // back to the vm commands
+    private boolean mSourceMap;
+
+    // The function the bootstrap code calls
+    private static final String ENTRY_FUNCTION = "Sys.init";
+
+    // The number of commands read ahead of the one translated
+    // from a stream, more than the longest superinstruction
+    private static final int STREAM_LOOKAHEAD = 8;
+
+    // The vm file name statics are named after in a
+    // stream, until its first function
+    private static final String STREAM_FILE_NAME = "Stdin";
+
+    public VMTranslator() {
+        mBufferSize = CodeWriter.DEFAULT_BUFFER_SIZE;
+        mBootstrap = Bootstrap.STANDARD;
+    }
+
+    /**
+     * Sets the size of the buffer the .asm file is written through.
+     * The file is only written to when the buffer fills up.
+     *
+     * @param bufferSize buffer size in chars
+     */
+    public void setBufferSize(int bufferSize) {
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the bootstrap code written before the vm code.
+     * See Bootstrap.
+     *
+     * @param bootstrap the bootstrap code, STANDARD by default
+     */
+    public void setBootstrap(Bootstrap bootstrap) {
+        mBootstrap = bootstrap;
+    }
+
+    /**
+     * Sets whether the code writers use a shared call routine
+     * and a shared return routine. See CodeWriter.
+     *
+     * @param sharedCallReturn true to use the shared routines
+     */
+    public void setSharedCallReturn(boolean sharedCallReturn) {
+        mSharedCallReturn = sharedCallReturn;
+    }
+
+    /**
+     * Sets whether the code writers use shared routines
+     * for eq, gt and lt. See CodeWriter.
+     *
+     * @param sharedComparisons true to use the shared routines
+     */
+    public void setSharedComparisons(boolean sharedComparisons) {
+        mSharedComparisons = sharedComparisons;
+    }
+
+    /**
+     * Sets whether the code is passed through a peephole optimizer.
+     * The number of instructions before and after optimization
+     * is printed at the end.
+     *
+     * @param peephole true to optimize
+     */
+    public void setPeephole(boolean peephole) {
+        mPeephole = peephole;
+    }
+
+    /**
+     * Sets whether the code writers keep the top
+     * of the stack in D. See CodeWriter.
+     *
+     * @param cacheStackTop true to keep the top of the stack in D
+     */
+    public void setCacheStackTop(boolean cacheStackTop) {
+        mCacheStackTop = cacheStackTop;
+    }
+
+    /**
+     * Sets whether common sequences of commands, such as
+     * a comparison followed by an if-goto, are translated
+     * together into shorter code.
+     *
+     * @param superinstructions true to look for the sequences
+     */
+    public void setSuperinstructions(boolean superinstructions) {
+        mSuperinstructions = superinstructions;
+    }
+
+    /**
+     * Sets whether only the functions which can be reached
+     * through calls from Sys.init are translated. Only used
+     * when translating a directory, as it needs the whole program.
+     *
+     * @param eliminateDeadFunctions true to leave out the
+     *                               other functions
+     */
+    public void setEliminateDeadFunctions(boolean eliminateDeadFunctions) {
+        mEliminateDeadFunctions = eliminateDeadFunctions;
+    }
+
+    /**
+     * Sets the size of the largest function, in commands, written
+     * in place of the calls to it. Only functions which call no other
+     * function are inlined, and only when translating a directory.
+     *
+     * @param inlineThreshold the size, 0 to inline no function
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        mInlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Sets whether the files of a directory are translated in
+     * parallel, each on its own code writer. The output is the
+     * same for any number of threads, with the files in name order.
+     *
+     * @param parallel true to translate the files in parallel
+     */
+    public void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Sets a file to report the size of each function in: the
+     * vm commands, the instructions written after optimization,
+     * the call sites and the comparisons. The functions with the
+     * most instructions come first. The report is in JSON if the
+     * file name ends in .json, comma separated values otherwise.
+     *
+     * @param profileFile the report file, null for no report
+     */
+    public void setProfileFile(File profileFile) {
+        mProfileFile = profileFile;
+    }
+
+    /**
+     * Sets whether a map from ROM addresses back to the vm commands
+     * is written along with the output. For an .asm file it is the
+     * command map, which the assembler composes with the maps of the
+     * jack compiler. For a .hack file the translator composes them
+     * itself. See the assembler's SourceMap for the formats.
+     *
+     * @param sourceMap true to write the map
+     */
+    public void setSourceMap(boolean sourceMap) {
+        mSourceMap = sourceMap;
+    }
+
+    /**
+     * Writes the command map of the code, if there is one,
+     * to the .asm file name followed by .map
+     */
+    private void writeCommandMap(CodeWriter codeWriter, File outputFile) {
+
+        CommandMap commandMap = codeWriter.getCommandMap();
+
+        if(commandMap == null) {
+            return;
+        }
+
+        try {
+
+            Writer out = new BufferedWriter(new FileWriter(outputFile.getPath() + ".map"));
+
+            try {
+                commandMap.write(out);
+            } finally {
+                out.close();
+            }
+
+        } catch (IOException e) {
+
+            System.out.println("Error: Could not write the command map of " + outputFile.getPath());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Composes the command map of the code, if there is one, with
+     * the maps of the jack compiler next to the vm files, and writes
+     * it to the .hack file name followed by .map
+     *
+     * @param romSize the number of instructions of the program
+     */
+    private void writeSourceMap(CodeWriter codeWriter, String hackFileName, int romSize) {
+
+        CommandMap commandMap = codeWriter.getCommandMap();
+
+        if(commandMap == null) {
+            return;
+        }
+
+        try {
+
+            StringWriter commands = new StringWriter();
+            commandMap.write(commands);
+
+            Writer out = new BufferedWriter(new FileWriter(hackFileName + ".map"));
+
+            try {
+                new SourceMap(new File(hackFileName).getAbsoluteFile().getParentFile())
+                        .compose(new BufferedReader(new StringReader(commands.toString())), romSize, out);
+            } finally {
+                out.close();
+            }
+
+        } catch (IOException e) {
+
+            System.out.println("Error: Could not write the source map of " + hackFileName);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the size of each function to the profile file,
+     * if there is one
+     */
+    private void reportProfile(CodeWriter codeWriter) {
+
+        FunctionProfile profile = codeWriter.getProfile();
+
+        if(profile == null) {
+            return;
+        }
+
+        try {
+
+            Writer out = new BufferedWriter(new FileWriter(mProfileFile));
+
+            try {
+
+                if(mProfileFile.getName().endsWith(".json")) {
+                    profile.writeJson(out);
+                } else {
+                    profile.writeCsv(out);
+                }
+
+            } finally {
+                out.close();
+            }
+
+            System.out.println("Function profile: " + profile.getEntries().size() + " functions written to "
+                    + mProfileFile.getPath());
+
+        } catch (IOException e) {
+
+            System.out.println("Error: Could not write the function profile " + mProfileFile.getPath());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prints the number of instructions before and
+     * after peephole optimization
+     *
+     * @param out where to print, the standard error
+     *            when the code goes to the standard output
+     */
+    private void reportPeephole(CodeWriter codeWriter, PrintStream out) {
+
+        PeepholeOptimizer optimizer = codeWriter.getPeepholeOptimizer();
+
+        if(optimizer == null) {
+            return;
+        }
+
+        // including the code translated in parallel
+        int before = optimizer.getInstructionsIn() + mPeepholeInstructionsIn;
+        int after = optimizer.getInstructionsOut() + mPeepholeInstructionsOut;
+
+        out.println("Peephole optimizer: " + before + " instructions before, " + after + " after ("
+                + (before - after) + " removed)");
+    }
+
     /**
      * returns true if an input file has extension vm
      *
@@ -76,6 +427,51 @@ public class VMTranslator {
 
     }
 
+    /**
+     * Reads all the commands of a vm file
+     *
+     * @param inputFile the input vm file
+     * @return the commands in the file, in order
+     */
+    private List<VMCommand> readCommands(File inputFile) {
+
+        List<VMCommand> commands = new ArrayList<VMCommand>();
+
+        Parser parser = new Parser(inputFile);
+
+        while(parser.hasMoreCommands()) {
+            commands.add(readCommand(parser));
+        }
+
+        parser.close();
+
+        return commands;
+    }
+
+    /**
+     * Reads the next command of a parser. hasMoreCommands
+     * must have returned true.
+     */
+    private static VMCommand readCommand(Parser parser) {
+
+        parser.advance();
+
+        CommandTypeVM type = parser.commandType();
+        String arg1 = null;
+        int arg2 = 0;
+
+        if(type != CommandTypeVM.C_RETURN) {
+            arg1 = parser.arg1();
+        }
+
+        if(type == CommandTypeVM.C_PUSH || type == CommandTypeVM.C_POP ||
+                type == CommandTypeVM.C_FUNCTION || type == CommandTypeVM.C_CALL) {
+            arg2 = parser.arg2();
+        }
+
+        return new VMCommand(type, arg1, arg2, parser.getCurrentCommand(), parser.getLineNumber());
+    }
+
     /**
      * For a given input vm file and codewriter object,
      * writes the hack assembly code for the
@@ -93,122 +489,1072 @@ public class VMTranslator {
             codeWriter.setCurrentFile(inputFile);
             codeWriter.emitComment("file: " + inputFile.getName());
 
-            Parser parser = new Parser(inputFile);
+            translateCommands(readCommands(inputFile), codeWriter);
+
+        }
+
+    }
+
+    /**
+     * Writes the hack code for the commands of a vm file
+     *
+     * @param commands   the commands of the file
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code
+     */
+    private void translateCommands(List<VMCommand> commands, CodeWriter codeWriter) {
+
+        int i = 0;
+
+        while(i < commands.size()) {
+            i = i + translateCommand(commands, i, codeWriter);
+        }
+
+    }
+
+    /**
+     * Writes the hack code for the command at an index, or for
+     * a superinstruction starting there
+     *
+     * @param commands   the commands, from which the following
+     *                   ones are looked at for a superinstruction
+     * @param index      the index of the command
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code
+     * @return the number of commands written
+     */
+    private int translateCommand(List<VMCommand> commands, int index, CodeWriter codeWriter) {
+
+        int nCommand = 0;
 
-            while(parser.hasMoreCommands()) {
+        if(mSuperinstructions) {
+            nCommand = writeSuperinstruction(commands, index, codeWriter, false);
+        }
+
+        if(nCommand == 0) {
+
+            VMCommand command = commands.get(index);
+
+            // Write the command as a comment
+            // Helps in debugging
+            codeWriter.emitComment(command.getText(), command.getLineNumber());
 
-                parser.advance();
+            if(mInliner != null && mInliner.isInlined(command)) {
+                writeInlineCall(mInliner.getFunction(command.getArg1(), command.getArg2()), command.getArg2(), codeWriter);
+            } else {
+                writeCommand(command, codeWriter);
+            }
 
-                // Write the command as a comment
-                // Helps in debugging
-                codeWriter.emitComment(parser.getCurrentCommand());
+            nCommand = 1;
+        }
 
-                switch (parser.commandType()) {
+        if(codeWriter.getProfile() != null) {
+            codeWriter.getProfile().addCommands(nCommand);
+        }
 
-                    case C_ARITHMETIC:
+        return nCommand;
+    }
 
-                        codeWriter.writeArithmetic(parser.arg1());
-                        break;
+    /**
+     * Writes the code of a function in place of a call to it. The
+     * arguments stay where the call pushed them and the locals are
+     * pushed above them, so that both are reached relative to SP.
+     *
+     * @param function   the function called
+     * @param numArgs    the number of arguments of the call
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code
+     */
+    private void writeInlineCall(Inliner.Function function, int numArgs, CodeWriter codeWriter) {
 
-                    case C_PUSH:
-                    case C_POP:
+        List<VMCommand> body = function.getBody();
+        List<Integer> savedPointers = function.getSavedPointers();
 
-                        codeWriter.writePushPop(parser.commandType(),parser.arg1(),parser.arg2());
-                        break;
+        codeWriter.beginInline(function.getFile(), function.getName());
 
-                    case C_CALL:
+        // Save the pointers the function sets, then push its locals
+        for(int pointer : savedPointers) {
+            codeWriter.writePushPop(CommandTypeVM.C_PUSH, "pointer", pointer);
+        }
 
-                        codeWriter.writeCall(parser.arg1(),parser.arg2());
-                        break;
+        for(int i=0;i<function.getNumLocals();i++) {
+            codeWriter.writePushPop(CommandTypeVM.C_PUSH, "constant", 0);
+        }
 
-                    case C_FUNCTION:
+        int last = body.size() - 1;
 
-                        codeWriter.setCurrentFunction(parser.arg1());
-                        codeWriter.writeFunction(parser.arg1(),parser.arg2());
-                        break;
+        while(function.getDepth(last) < 0) {
+            last = last - 1;
+        }
 
-                    case C_RETURN:
+        int i = 0;
 
-                        codeWriter.writeReturn();
-                        break;
+        while(i <= last) {
 
-                    case C_LABEL:
+            VMCommand command = body.get(i);
 
-                        codeWriter.writeLabel(parser.arg1());
-                        break;
+            // The number of entries pushed since the call. Argument a
+            // is that many entries down plus the number of arguments
+            // less a, saved pointer s that many less s and local l
+            // that many less the saved pointers and l.
+            int depth = function.getDepth(i);
 
-                    case C_GOTO:
+            if(depth < 0) {
+                i = i + 1;
+                continue;
+            }
 
-                        codeWriter.writeGoto(parser.arg1());
-                        break;
+            int nCommand = 0;
 
-                    case C_IF:
+            if(mSuperinstructions) {
+                nCommand = writeSuperinstruction(body, i, codeWriter, true);
+            }
 
-                        codeWriter.writeIf(parser.arg1());
-                        break;
+            if(nCommand > 0) {
+                i = i + nCommand;
+                continue;
+            }
 
-                    default:
+            codeWriter.emitComment(command.getText(), command.getLineNumber());
 
-                        break;
+            if(command.is(CommandTypeVM.C_PUSH, "argument")) {
+                codeWriter.writeStackPush(depth + numArgs - command.getArg2());
+            }
+            else if(command.is(CommandTypeVM.C_POP, "argument")) {
+                codeWriter.writeStackPop(depth + numArgs - command.getArg2());
+            }
+            else if(command.is(CommandTypeVM.C_PUSH, "local")) {
+                codeWriter.writeStackPush(depth - savedPointers.size() - command.getArg2());
+            }
+            else if(command.is(CommandTypeVM.C_POP, "local")) {
+                codeWriter.writeStackPop(depth - savedPointers.size() - command.getArg2());
+            }
+            else if(command.getType() == CommandTypeVM.C_RETURN) {
 
+                // Restore the caller's pointers
+                for(int s=0;s<savedPointers.size();s++) {
+                    codeWriter.writeStackPush(depth - s);
+                    codeWriter.writePushPop(CommandTypeVM.C_POP, "pointer", savedPointers.get(s));
                 }
 
+                codeWriter.writeInlineReturn(depth + numArgs, i == last);
+            }
+            else {
+                writeCommand(command, codeWriter);
             }
 
-            parser.close();
+            i = i + 1;
+        }
+
+        codeWriter.endInline();
+    }
+
+    /**
+     * Returns the commands of a vm file without the
+     * functions which are not in a set of functions
+     *
+     * @param commands  the commands of the file
+     * @param functions the functions to keep
+     */
+    private static List<VMCommand> keepFunctions(List<VMCommand> commands, Set<String> functions) {
+
+        List<VMCommand> kept = new ArrayList<VMCommand>();
 
+        boolean keep = true;
+
+        for(VMCommand command : commands) {
+
+            if(command.getType() == CommandTypeVM.C_FUNCTION) {
+                keep = functions.contains(command.getArg1());
+            }
+
+            if(keep) {
+                kept.add(command);
+            }
         }
 
+        return kept;
     }
 
     /**
-     * Translates and writes the hack code for
-     * a given input directory or vm file. Called
-     * from main after it creates a file object
-     * for the input.
+     * Writes the hack code for a single vm command
      *
-     * @param input the File object for the input
-     *              directory or input vm file
+     * @param command    the vm command
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code
      */
-    public void translate(File input) {
+    private void writeCommand(VMCommand command, CodeWriter codeWriter) {
 
-        File outputFile = validateInputAndGetOutputFile(input);
+        switch (command.getType()) {
 
-        CodeWriter codeWriter = new CodeWriter(outputFile);
+            case C_ARITHMETIC:
 
-        codeWriter.writeInit();
+                codeWriter.writeArithmetic(command.getArg1());
+                break;
 
-        if (input.isDirectory()) {
+            case C_PUSH:
+            case C_POP:
 
-            // list of files to process
-            File[] listOfInputFiles = input.listFiles();
+                codeWriter.writePushPop(command.getType(),command.getArg1(),command.getArg2());
+                break;
 
-            // translate each file in the directory
-            for(File file:listOfInputFiles) {
-                translateFile(file,codeWriter);
-            }
+            case C_CALL:
 
-        } else {
-            translateFile(input,codeWriter);
-        }
+                codeWriter.writeCall(command.getArg1(),command.getArg2());
+                break;
 
-        codeWriter.close();
+            case C_FUNCTION:
 
-    }
+                codeWriter.setCurrentFunction(command.getArg1());
+                codeWriter.writeFunction(command.getArg1(),command.getArg2());
+                break;
 
-    public static void main(String[] args) {
+            case C_RETURN:
 
-        if(args.length != 1) {
+                codeWriter.writeReturn();
+                break;
 
-            System.out.println("Error: Expected one argument: <input file/dir name>");
-            System.exit(1);
+            case C_LABEL:
+
+                codeWriter.writeLabel(command.getArg1());
+                break;
+
+            case C_GOTO:
+
+                codeWriter.writeGoto(command.getArg1());
+                break;
+
+            case C_IF:
+
+                codeWriter.writeIf(command.getArg1());
+                break;
+
+            default:
+
+                break;
 
         }
 
-        File input = new File(args[0]);
+    }
 
-        VMTranslator translator = new VMTranslator();
-        translator.translate(input);
+    /**
+     * Returns the command at an index, null past the last command
+     */
+    private static VMCommand commandAt(List<VMCommand> commands, int index) {
+        return index < commands.size() ? commands.get(index) : null;
+    }
+
+    /**
+     * Returns true if a command, which may be null,
+     * has a given type and first argument
+     */
+    private static boolean isCommand(VMCommand command, CommandTypeVM type, String arg1) {
+        return command != null && command.is(type, arg1);
+    }
+
+    /**
+     * Returns true if the commands at an index are
+     * if-goto T, goto F, label T. This is how the Jack
+     * compiler writes the branch of an if statement.
+     */
+    private static boolean isInvertibleBranch(List<VMCommand> commands, int index) {
+
+        VMCommand ifGoto = commandAt(commands, index);
+        VMCommand label = commandAt(commands, index + 2);
+
+        return ifGoto != null && ifGoto.getType() == CommandTypeVM.C_IF
+                && commandAt(commands, index + 1) != null
+                && commandAt(commands, index + 1).getType() == CommandTypeVM.C_GOTO
+                && label != null && label.getType() == CommandTypeVM.C_LABEL
+                && label.getArg1().equals(ifGoto.getArg1());
+    }
+
+    /**
+     * Writes the commands from an index as comments
+     */
+    private static void emitComments(List<VMCommand> commands, int index, int nCommand, CodeWriter codeWriter) {
+
+        for(int i = index; i < index + nCommand; i++) {
+            codeWriter.emitComment(commands.get(i).getText(), commands.get(i).getLineNumber());
+        }
+
+    }
+
+    /**
+     * Looks for a sequence of commands starting at an index for which
+     * the code writer has a shorter translation than the one it writes
+     * for each command on its own (a superinstruction), and writes it.
+     *
+     * @param commands   the commands of the file
+     * @param index      the index of the first command of the sequence
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code
+     * @param inlined    true if the commands are those of an inlined
+     *                   function, whose arguments and locals are not
+     *                   reached through ARG and LCL
+     * @return the number of commands written, 0 if there is
+     *         no such sequence at the index
+     */
+    private int writeSuperinstruction(List<VMCommand> commands, int index, CodeWriter codeWriter, boolean inlined) {
+
+        VMCommand first = commands.get(index);
+
+        // push s i, push constant c, add or sub, pop s i
+        VMCommand constant = commandAt(commands, index + 1);
+        VMCommand operation = commandAt(commands, index + 2);
+        VMCommand pop = commandAt(commands, index + 3);
+
+        boolean frameSegment = first.getArg1() != null
+                && (first.getArg1().equals("argument") || first.getArg1().equals("local"));
+
+        if(first.getType() == CommandTypeVM.C_PUSH && !first.getArg1().equals("constant") && !(inlined && frameSegment)
+                && isCommand(constant, CommandTypeVM.C_PUSH, "constant")
+                && (isCommand(operation, CommandTypeVM.C_ARITHMETIC, "add") || isCommand(operation, CommandTypeVM.C_ARITHMETIC, "sub"))
+                && isCommand(pop, CommandTypeVM.C_POP, first.getArg1()) && pop.getArg2() == first.getArg2()) {
+
+            emitComments(commands, index, 4, codeWriter);
+            codeWriter.writeIncrement(first.getArg1(), first.getArg2(), operation.getArg1(), constant.getArg2());
+            return 4;
+        }
+
+        // pop temp 0, pop pointer 1, push temp 0, pop that 0 (array store)
+        if(isCommand(first, CommandTypeVM.C_POP, "temp") && first.getArg2() == 0
+                && isCommand(commandAt(commands, index + 1), CommandTypeVM.C_POP, "pointer") && commands.get(index + 1).getArg2() == 1
+                && isCommand(commandAt(commands, index + 2), CommandTypeVM.C_PUSH, "temp") && commands.get(index + 2).getArg2() == 0
+                && isCommand(commandAt(commands, index + 3), CommandTypeVM.C_POP, "that") && commands.get(index + 3).getArg2() == 0) {
+
+            emitComments(commands, index, 4, codeWriter);
+            codeWriter.writeArrayStore();
+            return 4;
+        }
+
+        // add, pop pointer 1, push that 0 (array load)
+        if(isCommand(first, CommandTypeVM.C_ARITHMETIC, "add")
+                && isCommand(commandAt(commands, index + 1), CommandTypeVM.C_POP, "pointer") && commands.get(index + 1).getArg2() == 1
+                && isCommand(commandAt(commands, index + 2), CommandTypeVM.C_PUSH, "that") && commands.get(index + 2).getArg2() == 0) {
+
+            emitComments(commands, index, 3, codeWriter);
+            codeWriter.writeArrayLoad();
+            return 3;
+        }
+
+        // push constant 0, not or push constant 1, neg (Jack true)
+        if(isCommand(first, CommandTypeVM.C_PUSH, "constant")
+                && ((first.getArg2() == 0 && isCommand(commandAt(commands, index + 1), CommandTypeVM.C_ARITHMETIC, "not"))
+                || (first.getArg2() == 1 && isCommand(commandAt(commands, index + 1), CommandTypeVM.C_ARITHMETIC, "neg")))) {
+
+            emitComments(commands, index, 2, codeWriter);
+            codeWriter.writePushConstant(-1);
+            return 2;
+        }
+
+        // [push constant 0,] eq/gt/lt, [not,] followed by
+        // if-goto L or by if-goto T, goto F, label T
+        int next = index;
+        boolean withZero = false;
+
+        if(isCommand(first, CommandTypeVM.C_PUSH, "constant") && first.getArg2() == 0
+                && commandAt(commands, index + 1) != null && commands.get(index + 1).isComparison()) {
+            withZero = true;
+            next = next + 1;
+        }
+
+        if(commands.get(next).isComparison()) {
+
+            String comparison = commands.get(next).getArg1();
+            boolean jumpIfTrue = true;
+            next = next + 1;
+
+            if(isCommand(commandAt(commands, next), CommandTypeVM.C_ARITHMETIC, "not")) {
+                jumpIfTrue = false;
+                next = next + 1;
+            }
+
+            if(isInvertibleBranch(commands, next)) {
+
+                // jump to F if the condition does not hold, else fall through to T
+                emitComments(commands, index, next + 3 - index, codeWriter);
+                codeWriter.writeComparisonJump(comparison, withZero, !jumpIfTrue, commands.get(next + 1).getArg1());
+                codeWriter.writeLabel(commands.get(next + 2).getArg1());
+                return next + 3 - index;
+            }
+
+            if(commandAt(commands, next) != null && commands.get(next).getType() == CommandTypeVM.C_IF) {
+
+                emitComments(commands, index, next + 1 - index, codeWriter);
+                codeWriter.writeComparisonJump(comparison, withZero, jumpIfTrue, commands.get(next).getArg1());
+                return next + 1 - index;
+            }
+
+            return 0;
+        }
+
+        // not, if-goto L
+        if(isCommand(first, CommandTypeVM.C_ARITHMETIC, "not")
+                && commandAt(commands, index + 1) != null && commands.get(index + 1).getType() == CommandTypeVM.C_IF) {
+
+            emitComments(commands, index, 2, codeWriter);
+            codeWriter.writeIfNot(commands.get(index + 1).getArg1());
+            return 2;
+        }
+
+        // if-goto T, goto F, label T: jump to F if the top of the stack is 0
+        if(isInvertibleBranch(commands, index)) {
+
+            emitComments(commands, index, 3, codeWriter);
+            codeWriter.writeIfZero(commands.get(index + 1).getArg1());
+            codeWriter.writeLabel(commands.get(index + 2).getArg1());
+            return 3;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Builds the call graph of the commands of a program and
+     * returns the functions which can be reached from Sys.init
+     *
+     * @param fileCommands the commands of each file of the program
+     * @return the functions, or null if Sys.init is not defined
+     */
+    private Set<String> reachableFunctions(List<List<VMCommand>> fileCommands) {
+
+        CallGraph callGraph = new CallGraph();
+
+        for(List<VMCommand> commands : fileCommands) {
+
+            // Inlined calls do not need the function called
+            if(mInliner != null) {
+
+                List<VMCommand> calls = new ArrayList<VMCommand>();
+
+                for(VMCommand command : commands) {
+                    if(!mInliner.isInlined(command)) {
+                        calls.add(command);
+                    }
+                }
+
+                commands = calls;
+            }
+
+            callGraph.addCommands(commands);
+        }
+
+        mFunctionCount = callGraph.getFunctionCount();
+
+        if(!callGraph.isDefined(ENTRY_FUNCTION)) {
+            System.err.println("Warning: " + ENTRY_FUNCTION + " is not defined, translating all functions");
+            return null;
+        }
+
+        return callGraph.reachableFrom(ENTRY_FUNCTION);
+    }
+
+    /**
+     * Looks at all the files of a program before any is translated,
+     * for the options which need the whole program: finds the
+     * functions to inline and the functions which are reachable.
+     *
+     * @param files        the vm files of the program
+     * @param fileCommands the commands of each file
+     * @return the functions to translate, null for all
+     */
+    private Set<String> analyseProgram(List<File> files, List<List<VMCommand>> fileCommands) {
+
+        if(mInlineThreshold > 0) {
+
+            mInliner = new Inliner(mInlineThreshold);
+
+            for(int i=0;i<files.size();i++) {
+                mInliner.addFile(files.get(i), fileCommands.get(i));
+            }
+        }
+
+        if(!mEliminateDeadFunctions) {
+            return null;
+        }
+
+        return reachableFunctions(fileCommands);
+    }
+
+    /**
+     * Returns the number of functions defined by some commands
+     */
+    private static int countFunctions(List<VMCommand> commands) {
+
+        int nFunction = 0;
+
+        for(VMCommand command : commands) {
+            if(command.getType() == CommandTypeVM.C_FUNCTION) {
+                nFunction = nFunction + 1;
+            }
+        }
+
+        return nFunction;
+    }
+
+    /**
+     * Prints the number of functions kept and removed
+     * by dead function elimination
+     */
+    private void reportDeadFunctions(int nKept) {
+
+        System.out.println("Dead function elimination: " + nKept + " of " + mFunctionCount
+                + " functions kept (" + (mFunctionCount - nKept) + " removed)");
+    }
+
+    /**
+     * Translates the vm files of a directory as a whole program,
+     * for inlining and for leaving out the functions which can not
+     * be reached through calls from Sys.init. All the files are
+     * read before any is translated.
+     *
+     * @param inputFiles the files in the input directory
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code
+     */
+    private void translateWholeProgram(File[] inputFiles, CodeWriter codeWriter) {
+
+        List<File> vmFiles = new ArrayList<File>();
+        List<List<VMCommand>> vmFileCommands = new ArrayList<List<VMCommand>>();
+
+        for(File file:inputFiles) {
+
+            if(isAVmFile(file)) {
+                vmFiles.add(file);
+                vmFileCommands.add(readCommands(file));
+            }
+        }
+
+        Set<String> reachable = analyseProgram(vmFiles, vmFileCommands);
+
+        int nKept = 0;
+
+        for(int i=0;i<vmFiles.size();i++) {
+
+            List<VMCommand> commands = vmFileCommands.get(i);
+
+            if(reachable != null) {
+                commands = keepFunctions(commands, reachable);
+            }
+
+            nKept = nKept + countFunctions(commands);
+
+            codeWriter.setCurrentFile(vmFiles.get(i));
+            codeWriter.emitComment("file: " + vmFiles.get(i).getName());
+
+            translateCommands(commands, codeWriter);
+        }
+
+        if(mEliminateDeadFunctions) {
+            reportDeadFunctions(nKept);
+        }
+    }
+
+    /**
+     * Gives a code writer the options of the translator
+     */
+    private void configure(CodeWriter codeWriter) {
+
+        codeWriter.setBootstrap(mBootstrap);
+        codeWriter.setSharedCallReturn(mSharedCallReturn);
+        codeWriter.setSharedComparisons(mSharedComparisons);
+        codeWriter.setCacheStackTop(mCacheStackTop);
+
+        // Below the optimizer, to count the code it leaves
+        if(mProfileFile != null) {
+            codeWriter.enableProfile();
+        }
+
+        if(mSourceMap) {
+            codeWriter.enableCommandMap();
+        }
+
+        if(mPeephole) {
+            codeWriter.enablePeepholeOptimizer();
+        }
+
+    }
+
+    /**
+     * Translates one vm file of a directory on its own code
+     * writer, into a buffer. The labels the code writer numbers
+     * itself are prefixed with the file name, so they are
+     * unique across the files.
+     */
+    private class FileTranslation extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private File file;
+
+        private List<VMCommand> commands;
+
+        // The functions to translate, null for all
+        private Set<String> functions;
+
+        private CodeWriter codeWriter;
+
+        private InstructionBuffer buffer;
+
+        FileTranslation(File file) {
+            this.file = file;
+        }
+
+        void read() {
+            commands = readCommands(file);
+        }
+
+        @Override
+        protected void compute() {
+
+            if(commands == null) {
+                read();
+            }
+
+            if(functions != null) {
+                commands = keepFunctions(commands, functions);
+            }
+
+            buffer = new InstructionBuffer();
+
+            codeWriter = new CodeWriter(buffer);
+            configure(codeWriter);
+
+            codeWriter.setCurrentFile(file);
+            // Parser rejects vm names starting with a '$', so no
+            // function or label written by the vm code can clash
+            codeWriter.setLabelPrefix("$" + file.getName().replaceAll("\\.vm$", "") + ".");
+            codeWriter.emitComment("file: " + file.getName());
+
+            translateCommands(commands, codeWriter);
+
+            codeWriter.close();
+        }
+    }
+
+    /**
+     * Translates the vm files of a directory in parallel, each into
+     * its own buffer, and writes the buffers in file name order. The
+     * output does not depend on the number of threads.
+     *
+     * @param inputFiles the files in the input directory
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code, after the bootstrap code
+     */
+    private void translateInParallel(File[] inputFiles, CodeWriter codeWriter) {
+
+        File[] sortedFiles = inputFiles.clone();
+
+        // Directory listings are in no particular order
+        Arrays.sort(sortedFiles);
+
+        final List<FileTranslation> translations = new ArrayList<FileTranslation>();
+
+        for(File file:sortedFiles) {
+            if(isAVmFile(file)) {
+                translations.add(new FileTranslation(file));
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool();
+
+        try {
+
+            if(mEliminateDeadFunctions || mInlineThreshold > 0) {
+
+                // The whole program is needed first
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+
+                        List<RecursiveAction> reads = new ArrayList<RecursiveAction>();
+
+                        for(final FileTranslation translation : translations) {
+                            reads.add(new RecursiveAction() {
+                                @Override
+                                protected void compute() {
+                                    translation.read();
+                                }
+                            });
+                        }
+
+                        invokeAll(reads);
+                    }
+                });
+
+                List<File> files = new ArrayList<File>();
+                List<List<VMCommand>> fileCommands = new ArrayList<List<VMCommand>>();
+
+                for(FileTranslation translation : translations) {
+                    files.add(translation.file);
+                    fileCommands.add(translation.commands);
+                }
+
+                Set<String> reachable = analyseProgram(files, fileCommands);
+
+                for(FileTranslation translation : translations) {
+                    translation.functions = reachable;
+                }
+            }
+
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(translations);
+                }
+            });
+
+        } finally {
+            pool.shutdown();
+        }
+
+        int nKept = 0;
+
+        for(FileTranslation translation : translations) {
+
+            codeWriter.writeBuffer(translation.buffer);
+
+            if(codeWriter.getProfile() != null) {
+                codeWriter.getProfile().addAll(translation.codeWriter.getProfile());
+            }
+
+            if(codeWriter.getCommandMap() != null) {
+                codeWriter.getCommandMap().addAll(translation.codeWriter.getCommandMap());
+            }
+
+            nKept = nKept + countFunctions(translation.commands);
+
+            PeepholeOptimizer optimizer = translation.codeWriter.getPeepholeOptimizer();
+
+            if(optimizer != null) {
+                mPeepholeInstructionsIn = mPeepholeInstructionsIn + optimizer.getInstructionsIn();
+                mPeepholeInstructionsOut = mPeepholeInstructionsOut + optimizer.getInstructionsOut();
+            }
+        }
+
+        if(mEliminateDeadFunctions) {
+            reportDeadFunctions(nKept);
+        }
+    }
+
+    /**
+     * Translates a given input directory or vm file,
+     * giving the hack code to a code writer.
+     *
+     * @param input      the File object for the input
+     *                   directory or input vm file
+     * @param codeWriter CodeWriter object to use to write the
+     *                   output code
+     */
+    private void translate(File input, CodeWriter codeWriter) {
+
+        configure(codeWriter);
+
+        mPeepholeInstructionsIn = 0;
+        mPeepholeInstructionsOut = 0;
+        mInliner = null;
+
+        codeWriter.writeInit();
+
+        if (input.isDirectory()) {
+
+            // list of files to process
+            File[] listOfInputFiles = input.listFiles();
+
+            if(mParallel) {
+                translateInParallel(listOfInputFiles, codeWriter);
+            } else if(mEliminateDeadFunctions || mInlineThreshold > 0) {
+                translateWholeProgram(listOfInputFiles, codeWriter);
+            } else {
+
+                // translate each file in the directory
+                for(File file:listOfInputFiles) {
+                    translateFile(file,codeWriter);
+                }
+            }
+
+        } else {
+            translateFile(input,codeWriter);
+        }
+
+    }
+
+    /**
+     * Translates and writes the hack code for
+     * a given input directory or vm file. Called
+     * from main after it creates a file object
+     * for the input.
+     *
+     * @param input the File object for the input
+     *              directory or input vm file
+     */
+    public void translate(File input) {
+
+        File outputFile = validateInputAndGetOutputFile(input);
+
+        CodeWriter codeWriter = new CodeWriter(outputFile, mBufferSize);
+
+        translate(input, codeWriter);
+
+        codeWriter.close();
+
+        writeCommandMap(codeWriter, outputFile);
+
+        reportPeephole(codeWriter, System.out);
+
+        reportProfile(codeWriter);
+
+    }
+
+    /**
+     * Translates a given input directory or vm file
+     * straight to a .hack file. The code writer gives
+     * the instructions to the assembler, so no assembly
+     * text is written or parsed.
+     *
+     * The .hack file is named like the .asm file
+     * translate would write.
+     *
+     * @param input the File object for the input
+     *              directory or input vm file
+     */
+    public void translateToHack(File input) {
+
+        File outputFile = validateInputAndGetOutputFile(input);
+        String hackFileName = outputFile.getAbsolutePath().replaceAll("\\.asm$", ".hack");
+
+        Assembler assembler = new Assembler();
+        RomBuilder program = assembler.newProgram();
+
+        CodeWriter codeWriter = new CodeWriter(program);
+
+        translate(input, codeWriter);
+
+        codeWriter.close();
+
+        reportPeephole(codeWriter, System.out);
+
+        reportProfile(codeWriter);
+
+        try {
+            assembler.writeProgram(program, hackFileName);
+        } catch (IOException e) {
+
+            System.out.println("Error: Could not write " + hackFileName);
+            e.printStackTrace();
+            return;
+        }
+
+        writeSourceMap(codeWriter, hackFileName, program.size());
+
+    }
+
+    /**
+     * Translates vm code read from a stream and writes the hack
+     * code to another stream as it goes, such as from the standard
+     * input to the standard output in a pipeline. Only a few
+     * commands are read ahead, for superinstructions, and the
+     * output is written in blocks, so the memory used does not
+     * grow with the size of the input.
+     *
+     * A stream has no vm file names, so the statics of a function
+     * are named after its class, the part of its name before the
+     * first '.'. This is the name of its file for the code of the
+     * Jack compiler.
+     *
+     * The options which work on the whole program, parallel, dead
+     * function elimination and inlining, and the profile and the
+     * source map, which grow with the program, can not be used.
+     *
+     * @param input  the stream of vm code
+     * @param output the stream the hack assembly code is
+     *               written to, closed at the end
+     * @throws IllegalStateException if one of the options
+     *                               which can not be used is set
+     * @throws IOException if the input can not be read or
+     *                     the output can not be written
+     */
+    public void translate(InputStream input, OutputStream output) throws IOException {
+
+        if(mParallel || mEliminateDeadFunctions || mInlineThreshold > 0 || mProfileFile != null || mSourceMap) {
+            throw new IllegalStateException("The whole program options, the profile and the source map "
+                    + "can not be used on a stream");
+        }
+
+        CodeWriter codeWriter = new CodeWriter(new OutputStreamWriter(output), mBufferSize);
+
+        configure(codeWriter);
+
+        mPeepholeInstructionsIn = 0;
+        mPeepholeInstructionsOut = 0;
+        mInliner = null;
+
+        codeWriter.writeInit();
+        codeWriter.setCurrentFileName(STREAM_FILE_NAME);
+
+        Parser parser = new Parser(new InputStreamReader(input));
+
+        // The command to translate next and those after it
+        List<VMCommand> commands = new ArrayList<VMCommand>();
+
+        while(true) {
+
+            while(commands.size() < STREAM_LOOKAHEAD && parser.hasMoreCommands()) {
+                commands.add(readCommand(parser));
+            }
+
+            if(commands.isEmpty()) {
+                break;
+            }
+
+            VMCommand command = commands.get(0);
+
+            if(command.getType() == CommandTypeVM.C_FUNCTION) {
+
+                int dot = command.getArg1().indexOf('.');
+                codeWriter.setCurrentFileName(dot < 0 ? command.getArg1() : command.getArg1().substring(0, dot));
+            }
+
+            int nCommand = translateCommand(commands, 0, codeWriter);
+
+            commands.subList(0, nCommand).clear();
+        }
+
+        parser.close();
+
+        codeWriter.close();
+
+        if(parser.readFailed()) {
+            throw new IOException("Could not read the vm code");
+        }
+
+        if(codeWriter.checkError()) {
+            throw new IOException("Could not write the hack assembly code");
+        }
+
+        reportPeephole(codeWriter, System.err);
+    }
+
+    public static void main(String[] args) {
+
+        String inputName = null;
+        boolean toHack = false;
+        boolean sharedCallReturn = false;
+        boolean sharedComparisons = false;
+        boolean peephole = false;
+        boolean cacheStackTop = false;
+        boolean superinstructions = false;
+        boolean eliminateDeadFunctions = false;
+        boolean parallel = false;
+        int inlineThreshold = 0;
+        Bootstrap bootstrap = Bootstrap.STANDARD;
+        String profileName = null;
+        boolean sourceMap = false;
+        int bufferSize = CodeWriter.DEFAULT_BUFFER_SIZE;
+        boolean badArgument = false;
+
+        for(int i=0;i<args.length;i++) {
+
+            if(args[i].equals("--hack")) {
+                toHack = true;
+            }
+            else if(args[i].equals("--shared-call-return")) {
+                sharedCallReturn = true;
+            }
+            else if(args[i].equals("--shared-comparisons")) {
+                sharedComparisons = true;
+            }
+            else if(args[i].equals("--peephole")) {
+                peephole = true;
+            }
+            else if(args[i].equals("--cache-stack-top")) {
+                cacheStackTop = true;
+            }
+            else if(args[i].equals("--superinstructions")) {
+                superinstructions = true;
+            }
+            else if(args[i].equals("--eliminate-dead-functions")) {
+                eliminateDeadFunctions = true;
+            }
+            else if(args[i].equals("--parallel")) {
+                parallel = true;
+            }
+            else if(args[i].equals("--source-map")) {
+                sourceMap = true;
+            }
+            else if(args[i].equals("--bootstrap") && i+1 < args.length && args[i+1].matches("none|standard|compact")) {
+                i = i + 1;
+                bootstrap = Bootstrap.valueOf(args[i].toUpperCase());
+            }
+            else if(args[i].equals("--inline") && i+1 < args.length && args[i+1].matches("[0-9]+")) {
+                i = i + 1;
+                inlineThreshold = Integer.parseInt(args[i]);
+            }
+            else if(args[i].equals("--profile") && i+1 < args.length && !args[i+1].startsWith("--")) {
+                i = i + 1;
+                profileName = args[i];
+            }
+            else if(args[i].equals("--buffer-size") && i+1 < args.length && args[i+1].matches("[1-9][0-9]*")) {
+                i = i + 1;
+                bufferSize = Integer.parseInt(args[i]);
+            }
+            else if(inputName == null && !args[i].startsWith("--")) {
+                inputName = args[i];
+            }
+            else {
+                badArgument = true;
+            }
+        }
+
+        if(inputName == null || badArgument) {
+
+            System.out.println("Error: Expected arguments: [--hack] [--buffer-size <chars>] [--bootstrap none|standard|compact] [--shared-call-return] [--shared-comparisons] [--peephole] [--cache-stack-top] [--superinstructions] [--eliminate-dead-functions] [--parallel] [--inline <commands>] [--profile <report.csv|report.json>] [--source-map] <input file/dir name, or - to translate the standard input to the standard output>");
+            System.exit(1);
+
+        }
+
+        File input = new File(inputName);
+
+        VMTranslator translator = new VMTranslator();
+        translator.setBufferSize(bufferSize);
+        translator.setSharedCallReturn(sharedCallReturn);
+        translator.setSharedComparisons(sharedComparisons);
+        translator.setPeephole(peephole);
+        translator.setCacheStackTop(cacheStackTop);
+        translator.setSuperinstructions(superinstructions);
+        translator.setEliminateDeadFunctions(eliminateDeadFunctions);
+        translator.setParallel(parallel);
+        translator.setInlineThreshold(inlineThreshold);
+        translator.setBootstrap(bootstrap);
+        translator.setSourceMap(sourceMap);
+
+        if(profileName != null) {
+            translator.setProfileFile(new File(profileName));
+        }
+
+        if(inputName.equals("-")) {
+
+            if(toHack || parallel || eliminateDeadFunctions || inlineThreshold > 0 || profileName != null || sourceMap) {
+                System.err.println("Error: --hack, --parallel, --eliminate-dead-functions, --inline, --profile and "
+                        + "--source-map can not be used when translating the standard input");
+                System.exit(1);
+            }
+
+            // Written straight to the standard output, as System.out
+            // does not report a failed write
+            try {
+                translator.translate(System.in, new FileOutputStream(FileDescriptor.out));
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
+            }
+
+        } else if(toHack) {
+            translator.translateToHack(input);
+        } else {
+            translator.translate(input);
+        }
 
     }
 
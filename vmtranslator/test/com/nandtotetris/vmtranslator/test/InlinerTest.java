@@ -0,0 +1,369 @@
+package com.nandtotetris.vmtranslator.test;
+
+import com.nandtotetris.assembler.HackReader;
+import com.nandtotetris.vmtranslator.CommandTypeVM;
+import com.nandtotetris.vmtranslator.Inliner;
+import com.nandtotetris.vmtranslator.Parser;
+import com.nandtotetris.vmtranslator.VMCommand;
+import com.nandtotetris.vmtranslator.VMTranslator;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for unit testing Inliner class, and the calls the
+ * translator writes in place with it.
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class InlinerTest {
+
+    private static final File FILE = new File("Main.vm");
+
+    private static final String[] MAX = {
+            "function Main.max 0",
+            "push argument 0",
+            "push argument 1",
+            "gt",
+            "if-goto FIRST",
+            "push argument 1",
+            "return",
+            "push constant 5",
+            "label FIRST",
+            "push argument 0",
+            "return",
+    };
+
+    /**
+     * Parses vm code, one command per string
+     */
+    private static List<VMCommand> commands(String... code) {
+
+        StringBuilder text = new StringBuilder();
+
+        for(String line : code) {
+            text.append(line).append('\n');
+        }
+
+        Parser parser = new Parser(new StringReader(text.toString()));
+        List<VMCommand> commands = new ArrayList<VMCommand>();
+
+        while(parser.hasMoreCommands()) {
+
+            parser.advance();
+
+            CommandTypeVM type = parser.commandType();
+            String arg1 = type == CommandTypeVM.C_RETURN ? null : parser.arg1();
+            int arg2 = 0;
+
+            if(type == CommandTypeVM.C_PUSH || type == CommandTypeVM.C_POP ||
+                    type == CommandTypeVM.C_FUNCTION || type == CommandTypeVM.C_CALL) {
+                arg2 = parser.arg2();
+            }
+
+            commands.add(new VMCommand(type, arg1, arg2, parser.getCurrentCommand(), parser.getLineNumber()));
+        }
+
+        parser.close();
+
+        return commands;
+    }
+
+    private static Inliner inliner(int threshold, String... code) {
+
+        Inliner inliner = new Inliner(threshold);
+        inliner.addFile(FILE, commands(code));
+
+        return inliner;
+    }
+
+    private static int[] depths(Inliner.Function function) {
+
+        int[] depths = new int[function.getBody().size()];
+
+        for(int i = 0; i < depths.length; i++) {
+            depths[i] = function.getDepth(i);
+        }
+
+        return depths;
+    }
+
+    @Test
+    public void smallFunctionWithoutCallsIsInlined() {
+
+        Inliner inliner = inliner(20, MAX);
+        Inliner.Function function = inliner.getFunction("Main.max", 2);
+
+        assertNotNull(function);
+        assertEquals("Main.max", function.getName());
+        assertEquals(FILE, function.getFile());
+        assertEquals(0, function.getNumLocals());
+        assertTrue(function.getSavedPointers().isEmpty());
+        assertEquals(10, function.getBody().size());
+
+        assertTrue(inliner.isInlined(new VMCommand(CommandTypeVM.C_CALL, "Main.max", 2, "call Main.max 2", 1)));
+        assertFalse(inliner.isInlined(new VMCommand(CommandTypeVM.C_CALL, "Main.min", 2, "call Main.min 2", 1)));
+    }
+
+    @Test
+    public void callPassingTooFewArgumentsIsNotInlined() {
+
+        Inliner inliner = inliner(20, MAX);
+
+        assertNull(inliner.getFunction("Main.max", 1));
+        assertNotNull(inliner.getFunction("Main.max", 3));
+    }
+
+    @Test
+    public void functionLargerThanTheThresholdIsNotInlined() {
+
+        assertNull(inliner(9, MAX).getFunction("Main.max", 2));
+        assertNotNull(inliner(10, MAX).getFunction("Main.max", 2));
+
+        // the locals and the saved pointer count too: 4 + 1 + 2
+        String[] code = {"function Main.set 1", "push argument 0", "pop pointer 0", "push constant 0", "return"};
+
+        assertNull(inliner(6, code).getFunction("Main.set", 1));
+        assertNotNull(inliner(7, code).getFunction("Main.set", 1));
+    }
+
+    @Test
+    public void functionCallingAnotherIsNotInlined() {
+
+        Inliner inliner = inliner(20,
+                "function Main.twice 0", "push argument 0", "call Main.double 1", "return",
+                "function Main.double 0", "push argument 0", "push argument 0", "add", "return");
+
+        assertNull(inliner.getFunction("Main.twice", 1));
+        assertNotNull(inliner.getFunction("Main.double", 1));
+    }
+
+    @Test
+    public void labelReachedWithDifferentDepthsIsNotInlined() {
+
+        Inliner inliner = inliner(20,
+                "function Main.f 0", "push argument 0", "if-goto L", "push constant 1",
+                "label L", "push constant 0", "return");
+
+        assertNull(inliner.getFunction("Main.f", 1));
+
+        // the same depth from the jump and from the command before
+        inliner = inliner(20,
+                "function Main.g 0", "push argument 0", "if-goto L",
+                "label L", "push constant 0", "return");
+
+        assertNotNull(inliner.getFunction("Main.g", 1));
+    }
+
+    @Test
+    public void functionRunningOffItsEndIsNotInlined() {
+
+        Inliner inliner = inliner(20, "function Main.f 0", "push argument 0", "pop temp 0");
+
+        assertNull(inliner.getFunction("Main.f", 1));
+    }
+
+    @Test
+    public void functionJumpingOutOfItsBodyIsNotInlined() {
+
+        Inliner inliner = inliner(20, "function Main.f 0", "push constant 0", "goto ELSEWHERE", "return");
+
+        assertNull(inliner.getFunction("Main.f", 0));
+    }
+
+    @Test
+    public void functionReturningNothingIsNotInlined() {
+
+        assertNull(inliner(20, "function Main.f 0", "return").getFunction("Main.f", 0));
+
+        // the return value would be a local
+        assertNull(inliner(20, "function Main.g 1", "return").getFunction("Main.g", 0));
+    }
+
+    @Test
+    public void depthsOfEachCommand() {
+
+        Inliner.Function function = inliner(20, MAX).getFunction("Main.max", 2);
+
+        // push, push, gt, if-goto, push, return, unreached push,
+        // label (from the if-goto), push, return
+        assertArrayEquals(new int[] {0, 1, 2, 1, 0, 1, -1, 0, 0, 1}, depths(function));
+    }
+
+    @Test
+    public void depthsStartAboveTheSavedPointersAndLocals() {
+
+        Inliner.Function function = inliner(20,
+                "function Main.set 1", "push argument 0", "pop pointer 0", "push constant 1",
+                "pop local 0", "push local 0", "neg", "return").getFunction("Main.set", 1);
+
+        assertEquals(Arrays.asList(0), function.getSavedPointers());
+        assertEquals(1, function.getNumLocals());
+        assertArrayEquals(new int[] {2, 3, 2, 3, 2, 3, 3}, depths(function));
+    }
+
+    /**
+     * Runs a hack program from a reset and returns the RAM once
+     * the program has run a number of instructions
+     */
+    private static short[] run(short[] rom, int nStep) {
+
+        short[] ram = new short[32768];
+        short a = 0;
+        short d = 0;
+        int pc = 0;
+
+        for(int step = 0; step < nStep && pc < rom.length; step++) {
+
+            int instruction = rom[pc] & 0xffff;
+
+            if((instruction & 0x8000) == 0) {
+                a = (short) instruction;
+                pc = pc + 1;
+                continue;
+            }
+
+            // the ALU: zx nx zy ny f no
+            int comp = instruction >> 6 & 0x3f;
+            int x = d;
+            int y = (instruction & 0x1000) != 0 ? ram[a & 0x7fff] : a;
+
+            if((comp & 0x20) != 0) x = 0;
+            if((comp & 0x10) != 0) x = ~x;
+            if((comp & 0x08) != 0) y = 0;
+            if((comp & 0x04) != 0) y = ~y;
+
+            short out = (short) ((comp & 0x02) != 0 ? x + y : x & y);
+
+            if((comp & 0x01) != 0) out = (short) ~out;
+
+            boolean jump = (instruction & 0x4) != 0 && out < 0
+                    || (instruction & 0x2) != 0 && out == 0
+                    || (instruction & 0x1) != 0 && out > 0;
+
+            int target = a;
+
+            if((instruction & 0x08) != 0) ram[a & 0x7fff] = out;
+            if((instruction & 0x10) != 0) d = out;
+            if((instruction & 0x20) != 0) a = out;
+
+            pc = jump ? target : pc + 1;
+        }
+
+        return ram;
+    }
+
+    private static void write(File file, String... code) throws IOException {
+
+        Writer writer = new FileWriter(file);
+
+        try {
+            for(String line : code) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Translates a program directory to hack code and reads it back
+     */
+    private static short[] translate(File directory, int inlineThreshold) throws IOException {
+
+        VMTranslator translator = new VMTranslator();
+        translator.setInlineThreshold(inlineThreshold);
+        translator.translateToHack(directory);
+
+        return new HackReader(new File(directory, directory.getName() + ".hack").getPath()).getInstructions();
+    }
+
+    /**
+     * An inlined function using its arguments, a local and pop pointer
+     * must leave the machine as the call of the function does
+     */
+    @Test
+    public void inlinedCallComputesWhatTheCallDoes() throws IOException {
+
+        File directory = Files.createTempDirectory("InlinerTest").toFile();
+
+        File sys = new File(directory, "Sys.vm");
+        File main = new File(directory, "Main.vm");
+        File hack = new File(directory, directory.getName() + ".hack");
+
+        write(sys,
+                "function Sys.init 0",
+                "push constant 3000",
+                "pop pointer 1",
+                "push constant 9",
+                "push constant 4000",
+                "call Main.mix 2",
+                "pop temp 0",
+                "push pointer 1",
+                "pop temp 1",
+                "push constant 7",
+                "push constant 5000",
+                "call Main.mix 2",
+                "pop temp 2",
+                "label END",
+                "goto END");
+
+        // local 0 = a - b, that 0 = local 0 with that = b,
+        // returns local 0 + a
+        write(main,
+                "function Main.mix 1",
+                "push argument 0",
+                "push argument 1",
+                "sub",
+                "pop local 0",
+                "push argument 1",
+                "pop pointer 1",
+                "push local 0",
+                "pop that 0",
+                "push local 0",
+                "push argument 0",
+                "add",
+                "return");
+
+        try {
+            short[] called = translate(directory, 0);
+            short[] inlined = translate(directory, 20);
+
+            assertFalse(Arrays.equals(called, inlined));
+
+            for(short[] rom : Arrays.asList(called, inlined)) {
+
+                short[] ram = run(rom, 10000);
+
+                assertEquals(9 - 4000 + 9, ram[5]);
+                assertEquals(3000, ram[6]);
+                assertEquals(7 - 5000 + 7, ram[7]);
+                assertEquals(9 - 4000, ram[4000]);
+                assertEquals(7 - 5000, ram[5000]);
+                assertEquals(3000, ram[4]);
+                assertEquals(261, ram[0]);
+            }
+        } finally {
+            hack.delete();
+            sys.delete();
+            main.delete();
+            directory.delete();
+        }
+    }
+}
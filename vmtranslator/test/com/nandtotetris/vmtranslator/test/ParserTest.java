@@ -1,8 +1,15 @@
 package com.nandtotetris.vmtranslator.test;
 
+import com.nandtotetris.vmtranslator.CommandTypeVM;
 import com.nandtotetris.vmtranslator.Parser;
 import org.junit.Test;
 
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 /**
  * Test class for unit testing Parser class
  *
@@ -15,4 +22,50 @@ public class ParserTest {
 
 
     }
+
+    @Test
+    public void namesMayHoldADollar() {
+
+        Parser parser = new Parser(new StringReader("function Main.a$b 0\nlabel LOOP$1\n"));
+
+        assertTrue(parser.hasMoreCommands());
+        parser.advance();
+        assertEquals(CommandTypeVM.C_FUNCTION, parser.commandType());
+        assertEquals("Main.a$b", parser.arg1());
+
+        assertTrue(parser.hasMoreCommands());
+        parser.advance();
+        assertEquals(CommandTypeVM.C_LABEL, parser.commandType());
+        assertEquals("LOOP$1", parser.arg1());
+
+        parser.close();
+    }
+
+    @Test
+    public void namesStartingWithADollarAreRejected() {
+
+        String[] commands = {
+                "function $CALL 0",
+                "call $RETURN 0",
+                "label $RETURN",
+                "goto $START",
+                "if-goto $EQ",
+        };
+
+        for(String command : commands) {
+
+            Parser parser = new Parser(new StringReader(command + "\n"));
+
+            assertTrue(parser.hasMoreCommands());
+
+            try {
+                parser.advance();
+                fail("accepted: " + command);
+            } catch(IllegalArgumentException e) {
+                assertEquals("Invalid vm command at line 1: " + command, e.getMessage());
+            }
+
+            parser.close();
+        }
+    }
 }
@@ -0,0 +1,299 @@
+package com.nandtotetris.vmtranslator.test;
+
+import com.nandtotetris.assembler.InstructionSink;
+import com.nandtotetris.vmtranslator.CodeWriter;
+import com.nandtotetris.vmtranslator.CommandTypeVM;
+import com.nandtotetris.vmtranslator.PeepholeOptimizer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test class for unit testing PeepholeOptimizer class.
+ *
+ * Each test gives the optimizer hack assembly code, one instruction
+ * per string, and checks the code it passes on. Comments are written
+ * as "// text".
+ *
+ * @author gaganpreet1810@gmail.com
+ */
+public class PeepholeOptimizerTest {
+
+    /**
+     * Records the code passed on by the optimizer as assembly text
+     */
+    static class Recorder implements InstructionSink {
+
+        List<String> code = new ArrayList<String>();
+
+        @Override
+        public void comment(String text) {
+            code.add("// " + text);
+        }
+
+        @Override
+        public void instructionA(String argument) {
+            code.add("@" + argument);
+        }
+
+        @Override
+        public void instructionC(String dest, String comp, String jump) {
+            code.add((dest.isEmpty() ? "" : dest + "=") + comp + (jump.isEmpty() ? "" : ";" + jump));
+        }
+
+        @Override
+        public void instructionL(String label) {
+            code.add("(" + label + ")");
+        }
+
+        String[] toArray() {
+            return code.toArray(new String[code.size()]);
+        }
+    }
+
+    /**
+     * Gives assembly text to a sink, one instruction per string
+     */
+    static void give(InstructionSink sink, String... code) {
+
+        for(String line : code) {
+
+            if(line.startsWith("//")) {
+                sink.comment(line.substring(2).trim());
+            }
+            else if(line.startsWith("@")) {
+                sink.instructionA(line.substring(1));
+            }
+            else if(line.startsWith("(")) {
+                sink.instructionL(line.substring(1, line.length() - 1));
+            }
+            else {
+
+                int equals = line.indexOf('=');
+                int semicolon = line.indexOf(';');
+
+                String dest = equals < 0 ? "" : line.substring(0, equals);
+                String comp = line.substring(equals + 1, semicolon < 0 ? line.length() : semicolon);
+                String jump = semicolon < 0 ? "" : line.substring(semicolon + 1);
+
+                sink.instructionC(dest, comp, jump);
+            }
+        }
+    }
+
+    /**
+     * Checks that the optimizer turns code into the expected code
+     */
+    private static void assertOptimized(String[] code, String[] expected) {
+
+        Recorder recorder = new Recorder();
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(recorder);
+
+        give(optimizer, code);
+        optimizer.flush();
+
+        assertArrayEquals(expected, recorder.toArray());
+    }
+
+    private static String[] code(String... code) {
+        return code;
+    }
+
+    @Test
+    public void unusedAInstructionBeforeAInstructionIsRemoved() {
+
+        assertOptimized(
+                code("@5", "@SP", "M=D"),
+                code("@SP", "M=D"));
+    }
+
+    @Test
+    public void unusedAInstructionBeforeLabelIsRemoved() {
+
+        assertOptimized(
+                code("D=M", "@5", "(LOOP)"),
+                code("D=M", "(LOOP)"));
+    }
+
+    @Test
+    public void aInstructionLoadingTheValueOfAIsRemoved() {
+
+        assertOptimized(
+                code("@SP", "D=M", "@SP", "M=D"),
+                code("@SP", "D=M", "M=D"));
+
+        // A was changed in between
+        assertOptimized(
+                code("@SP", "A=M", "@SP", "M=D"),
+                code("@SP", "A=M", "@SP", "M=D"));
+    }
+
+    @Test
+    public void stackPointerIncrementAndDecrementAreRemoved() {
+
+        // push D, then pop into D
+        assertOptimized(
+                code("@SP", "A=M", "M=D", "@SP", "M=M+1", "@SP", "M=M-1", "A=M", "D=M"),
+                code("@SP", "A=M", "M=D"));
+
+        // the same with AM=M+1 and AM=M-1
+        assertOptimized(
+                code("@SP", "AM=M+1", "A=A-1", "M=D", "@SP", "AM=M-1", "D=M"),
+                code("@SP", "A=M", "M=D"));
+
+        // push constant 0, then pop into D
+        assertOptimized(
+                code("@SP", "AM=M+1", "A=A-1", "M=0", "@SP", "AM=M-1", "D=M"),
+                code("@SP", "A=M", "M=0", "D=M"));
+
+        // AM=M+1 undone by M=M-1
+        assertOptimized(
+                code("@SP", "AM=M+1", "A=A-1", "M=D", "@SP", "M=M-1", "A=M", "D=M"),
+                code("@SP", "A=M", "M=D"));
+
+        // M=M+1 undone by AM=M-1
+        assertOptimized(
+                code("@SP", "M=M+1", "@SP", "AM=M-1", "D=M"),
+                code("@SP", "A=M", "D=M"));
+    }
+
+    @Test
+    public void stackPointerIncrementIsKeptWhenSPIsUsed() {
+
+        // D=SP reads the incremented SP
+        assertOptimized(
+                code("@SP", "M=M+1", "D=M", "@SP", "M=M-1"),
+                code("@SP", "M=M+1", "D=M", "M=M-1"));
+
+        assertOptimized(
+                code("@SP", "AM=M+1", "@SP", "D=M", "@SP", "AM=M-1"),
+                code("@SP", "AM=M+1", "@SP", "D=M", "AM=M-1"));
+    }
+
+    @Test
+    public void stackPointerIncrementIsKeptAcrossJump() {
+
+        assertOptimized(
+                code("@SP", "M=M+1", "@END", "D;JGT", "@SP", "M=M-1"),
+                code("@SP", "M=M+1", "@END", "D;JGT", "@SP", "M=M-1"));
+    }
+
+    @Test
+    public void addressLoadedFromSPIsNotLoadedAgain() {
+
+        assertOptimized(
+                code("@SP", "A=M", "M=D", "@SP", "A=M", "M=0"),
+                code("@SP", "A=M", "M=D", "M=0"));
+
+        // A was changed in between
+        assertOptimized(
+                code("@SP", "A=M", "A=A+1", "@SP", "A=M"),
+                code("@SP", "A=M", "A=A+1", "@SP", "A=M"));
+    }
+
+    @Test
+    public void loadOfTheValueJustStoredIsRemoved() {
+
+        assertOptimized(
+                code("@R13", "M=D", "D=M"),
+                code("@R13", "M=D"));
+
+        assertOptimized(
+                code("@R13", "M=D+1", "D=M"),
+                code("@R13", "M=D+1", "D=M"));
+    }
+
+    @Test
+    public void jumpToNextLabelIsRemoved() {
+
+        assertOptimized(
+                code("D=M", "@NEXT", "0;JMP", "(NEXT)"),
+                code("D=M", "(NEXT)"));
+
+        assertOptimized(
+                code("@NEXT", "D;JEQ", "(NEXT)"),
+                code("(NEXT)"));
+
+        // the jump also stores to M
+        assertOptimized(
+                code("@NEXT", "M=D;JEQ", "(NEXT)"),
+                code("@NEXT", "M=D;JEQ", "(NEXT)"));
+    }
+
+    @Test
+    public void storeFollowedByLoadOfAIsMerged() {
+
+        assertOptimized(
+                code("@SP", "M=D", "A=M"),
+                code("@SP", "AM=D"));
+    }
+
+    @Test
+    public void commentsAndLabelsArePassedOn() {
+
+        assertOptimized(
+                code("@5", "// push constant 5", "@SP", "M=D"),
+                code("// push constant 5", "@SP", "M=D"));
+
+        assertOptimized(
+                code("(A)", "(B)", "// end"),
+                code("(A)", "(B)", "// end"));
+    }
+
+    @Test
+    public void instructionsAreCounted() {
+
+        Recorder recorder = new Recorder();
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(recorder);
+
+        give(optimizer, "@SP", "A=M", "M=D", "@SP", "M=M+1", "@SP", "M=M-1", "A=M", "D=M");
+
+        assertEquals(9, optimizer.getInstructionsIn());
+        assertEquals(3, optimizer.getInstructionsOut());
+
+        optimizer.flush();
+
+        assertEquals(3, optimizer.getInstructionsOut());
+        assertEquals(3, recorder.code.size());
+    }
+
+    /**
+     * The code writer's push followed by its pop must not
+     * change SP once optimized, whatever shape they take
+     */
+    @Test
+    public void pushFollowedByPopDoesNotChangeSP() {
+
+        String[][] pairs = {
+                {"local", "0", "that", "0"},
+                {"argument", "1", "local", "2"},
+                {"constant", "7", "temp", "1"},
+                {"constant", "0", "static", "3"},
+                {"this", "5", "pointer", "1"},
+                {"static", "2", "this", "20"},
+        };
+
+        for(String[] pair : pairs) {
+
+            Recorder recorder = new Recorder();
+            CodeWriter codeWriter = new CodeWriter(recorder);
+            codeWriter.enablePeepholeOptimizer();
+            codeWriter.setCurrentFileName("Test");
+
+            codeWriter.writePushPop(CommandTypeVM.C_PUSH, pair[0], Integer.parseInt(pair[1]));
+            codeWriter.writePushPop(CommandTypeVM.C_POP, pair[2], Integer.parseInt(pair[3]));
+            codeWriter.close();
+
+            for(String line : recorder.code) {
+                assertFalse("push " + pair[0] + " " + pair[1] + ", pop " + pair[2] + " " + pair[3]
+                                + " changes SP: " + recorder.code,
+                        line.equals("M=M+1") || line.equals("AM=M+1") || line.equals("M=M-1") || line.equals("AM=M-1"));
+            }
+        }
+    }
+}